@@ -41,8 +41,8 @@ public class BootReceiver extends BroadcastReceiver {
 
         TouchscreenGestureSettings.restoreTouchscreenGestureStates(ctx);
 
-        // Extract the contributors database
-        ContributorsCloudFragment.extractContributorsCloudDatabase(ctx);
+        // Extract the contributors database (only if the package changed)
+        ContributorsCloudFragment.extractContributorsCloudDatabaseIfNeeded(ctx);
     }
 
     private boolean hasRestoredTunable(Context context) {
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.cmparts;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import org.cyanogenmod.cmparts.PartsUpdater.Refreshable.SummaryProvider;
+
+import java.util.Locale;
+import java.util.Set;
+
+import cyanogenmod.preference.SettingsHelper;
+
+/**
+ * The summaries of the parts, kept until one of the trigger URIs of their provider
+ * changes. Providers without trigger URIs are asked every time.
+ */
+/* package */ class PartSummaryCache implements SettingsHelper.OnSettingsChangeListener {
+
+    private static final String TAG = "PartSummaryCache";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private final Context mContext;
+
+    // All the fields are guarded by this
+    private final ArrayMap<String, String> mSummaries = new ArrayMap<>();
+    private final ArrayMap<String, Uri[]> mTriggerUris = new ArrayMap<>();
+    private final Set<Uri> mWatchedUris = new ArraySet<>();
+    private Locale mLocale;
+
+    // Bumped on every invalidation, so a summary built while its settings changed
+    // isn't kept
+    private int mVersion;
+
+    PartSummaryCache(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * @return the summary of the passed part, from the cache if none of its trigger URIs
+     * changed since it was built
+     */
+    String getSummary(Context context, String key, SummaryProvider provider) {
+        final Uri[] triggerUris = provider.getTriggerUris(context);
+        final int version;
+        synchronized (this) {
+            checkLocale();
+            if (mSummaries.containsKey(key)) {
+                return mSummaries.get(key);
+            }
+            if (triggerUris == null) {
+                return provider.getSummary(context, key);
+            }
+            // Watch before building the summary, so no change is missed
+            watch(triggerUris);
+            version = mVersion;
+        }
+
+        final String summary = provider.getSummary(context, key);
+        synchronized (this) {
+            if (version == mVersion) {
+                mSummaries.put(key, summary);
+                mTriggerUris.put(key, triggerUris);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Drop the summary of the passed part, so it's built again by the next request
+     */
+    synchronized void invalidate(String key) {
+        mSummaries.remove(key);
+        mTriggerUris.remove(key);
+        mVersion++;
+        if (DEBUG) Log.d(TAG, "Part " + key + " changed");
+    }
+
+    @Override
+    public synchronized void onSettingsChanged(Uri uri) {
+        for (int i = mTriggerUris.size() - 1; i >= 0; i--) {
+            for (Uri triggerUri : mTriggerUris.valueAt(i)) {
+                if (triggerUri.equals(uri)) {
+                    invalidate(mTriggerUris.keyAt(i));
+                    break;
+                }
+            }
+        }
+    }
+
+    private void checkLocale() {
+        final Locale locale = mContext.getResources().getConfiguration().locale;
+        if (!locale.equals(mLocale)) {
+            if (mLocale != null) {
+                mSummaries.clear();
+                mTriggerUris.clear();
+                mVersion++;
+            }
+            mLocale = locale;
+        }
+    }
+
+    private void watch(Uri[] uris) {
+        boolean changed = false;
+        for (Uri uri : uris) {
+            changed |= mWatchedUris.add(uri);
+        }
+        if (changed) {
+            SettingsHelper.get(mContext).startWatching(this,
+                    mWatchedUris.toArray(new Uri[mWatchedUris.size()]));
+        }
+    }
+}
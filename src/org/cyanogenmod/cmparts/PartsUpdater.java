@@ -15,14 +15,29 @@
  */
 package org.cyanogenmod.cmparts;
 
+import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 
+import org.cyanogenmod.cmparts.hardware.DisplayRotation;
+import org.cyanogenmod.cmparts.notificationlight.BatteryLightSettings;
+import org.cyanogenmod.cmparts.notificationlight.NotificationLightSettings;
+import org.cyanogenmod.cmparts.power.PerfProfileSettings;
+import org.cyanogenmod.cmparts.profiles.ProfilesSettings;
+import org.cyanogenmod.cmparts.weather.WeatherServiceSettings;
 import org.cyanogenmod.internal.cmparts.PartInfo;
 import org.cyanogenmod.internal.cmparts.PartsList;
 
-import java.lang.reflect.Field;
+import java.util.Map;
 
 import cyanogenmod.preference.RemotePreferenceUpdater;
 import cyanogenmod.preference.SettingsHelper;
@@ -38,41 +53,109 @@ import static org.cyanogenmod.internal.cmparts.PartsList.EXTRA_PART;
  *
  * This works in conjunction with CMPartsPreference, which will send an
  * ordered broadcast requesting updated information. The part will be
- * looked up, and checked for a static SUMMARY_INFO field. If an
- * instance of SummaryInfo is found in this field, the result of the
- * broadcast will be updated with the new information.
+ * looked up, and its SummaryProvider (the static SUMMARY_PROVIDER field of
+ * the part, registered below) will be used to update the result of the
+ * broadcast with the new information.
  *
- * Parts can also call refreshPart to send an asynchronous update to any
- * active remote components via broadcast.
+ * Clients showing many parts at once can send a single ordered
+ * ACTION_REFRESH_PARTS broadcast with all the keys in EXTRA_KEYS. The
+ * result extras then hold the extras of every part, keyed by the part key.
+ * This is meant for the Settings dashboard, which finds this receiver
+ * through the org.cyanogenmod.settings.summary.receiver meta-data of its
+ * tiles; nothing in CMParts sends it.
+ *
+ * Summaries are cached until one of the trigger URIs of their provider
+ * changes, or the part is refreshed.
+ *
+ * Parts can also call notifyChanged to send an asynchronous update to any
+ * active remote components via broadcast. The updates of a part are
+ * coalesced, so at most one broadcast per part is sent in every
+ * config_partRefreshCoalesceMs window.
  */
 public class PartsUpdater extends RemotePreferenceUpdater {
 
     private static final String TAG = PartsUpdater.class.getSimpleName();
 
-    public static final String FIELD_NAME_SUMMARY_PROVIDER = "SUMMARY_PROVIDER";
+    public static final String ACTION_REFRESH_PARTS =
+            "org.cyanogenmod.cmparts.action.REFRESH_PARTS";
+    public static final String EXTRA_KEYS = "keys";
 
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.VERBOSE);
 
+    // The summary providers of the parts, by fragment class name
+    private static final Map<String, Refreshable.SummaryProvider> sSummaryProviders =
+            new ArrayMap<>();
+
+    static {
+        addSummaryProvider(PrivacySettings.class, PrivacySettings.SUMMARY_PROVIDER);
+        addSummaryProvider(ProfilesSettings.class, ProfilesSettings.SUMMARY_PROVIDER);
+        addSummaryProvider(NotificationLightSettings.class,
+                NotificationLightSettings.SUMMARY_PROVIDER);
+        addSummaryProvider(BatteryLightSettings.class, BatteryLightSettings.SUMMARY_PROVIDER);
+        addSummaryProvider(WeatherServiceSettings.class,
+                WeatherServiceSettings.SUMMARY_PROVIDER);
+        addSummaryProvider(PerfProfileSettings.class, PerfProfileSettings.SUMMARY_PROVIDER);
+        addSummaryProvider(DisplayRotation.class, DisplayRotation.SUMMARY_PROVIDER);
+    }
+
+    private static PartSummaryCache sSummaryCache;
+    private static RefreshHandler sRefreshHandler;
+
+    private static void addSummaryProvider(Class<? extends Refreshable> clazz,
+            Refreshable.SummaryProvider provider) {
+        sSummaryProviders.put(clazz.getName(), provider);
+    }
+
     private Refreshable.SummaryProvider getPartSummary(PartInfo pi) {
-        final Class<?> clazz;
-        try {
-            clazz = Class.forName(pi.getFragmentClass());
-        } catch (ClassNotFoundException e) {
-            Log.d(TAG, "Cannot find class: " + pi.getFragmentClass());
-            return null;
+        return sSummaryProviders.get(pi.getFragmentClass());
+    }
+
+    private static synchronized PartSummaryCache getSummaryCache(Context context) {
+        if (sSummaryCache == null) {
+            sSummaryCache = new PartSummaryCache(context);
+        }
+        return sSummaryCache;
+    }
+
+    private static synchronized RefreshHandler getRefreshHandler(Context context) {
+        if (sRefreshHandler == null) {
+            sRefreshHandler = new RefreshHandler(context);
+        }
+        return sRefreshHandler;
+    }
+
+    /**
+     * Drop the cached summary of the passed part, and notify the remote
+     * components it changed. The notification is delayed if the part was
+     * already notified in the current coalescing window.
+     */
+    public static void notifyChanged(Context context, String key) {
+        getSummaryCache(context).invalidate(key);
+        getRefreshHandler(context).refresh(key);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_REFRESH_PARTS.equals(intent.getAction())) {
+            super.onReceive(context, intent);
+            return;
         }
 
-        if (clazz == null || !Refreshable.class.isAssignableFrom(clazz)) {
-            return null;
+        final String[] keys = intent.getStringArrayExtra(EXTRA_KEYS);
+        if (!isOrderedBroadcast() || keys == null) {
+            return;
         }
 
-        try {
-            final Field f = clazz.getField(FIELD_NAME_SUMMARY_PROVIDER);
-            return (Refreshable.SummaryProvider) f.get(null);
-        } catch (Exception e) {
-            // ignore
+        // Answer all the keys in one round trip
+        final Bundle results = getResultExtras(true);
+        for (String key : keys) {
+            final Bundle bundle = new Bundle();
+            if (fillResultExtras(context, key, bundle)) {
+                results.putBundle(key, bundle);
+            }
         }
-        return null;
+        setResultCode(Activity.RESULT_OK);
+        setResultExtras(results);
     }
 
     @Override
@@ -87,7 +170,7 @@ public class PartsUpdater extends RemotePreferenceUpdater {
 
         final Refreshable.SummaryProvider si = getPartSummary(pi);
         if (si != null) {
-            pi.setSummary(si.getSummary(context, key));
+            pi.setSummary(getSummaryCache(context).getSummary(context, key, si));
             bundle.putString(EXTRA_SUMMARY, pi.getSummary());
         }
 
@@ -98,9 +181,67 @@ public class PartsUpdater extends RemotePreferenceUpdater {
         return true;
     }
 
+    /**
+     * Sends the refresh broadcasts of the parts, at most one per part in every
+     * window. The first change of a part is sent right away, and the following
+     * ones are merged in a single broadcast at the end of the window.
+     */
+    private static class RefreshHandler extends Handler {
+
+        private static final int MSG_REFRESH = 1;
+
+        private final Context mContext;
+        private final long mWindow;
+
+        // All the fields are guarded by this
+        private final ArrayMap<String, Long> mLastRefresh = new ArrayMap<>();
+        private final ArraySet<String> mPending = new ArraySet<>();
+
+        RefreshHandler(Context context) {
+            super(Looper.getMainLooper());
+            mContext = context.getApplicationContext();
+            mWindow = context.getResources().getInteger(R.integer.config_partRefreshCoalesceMs);
+        }
+
+        void refresh(String key) {
+            synchronized (this) {
+                if (mPending.contains(key)) {
+                    // Merged in the pending broadcast
+                    return;
+                }
+                final long now = SystemClock.uptimeMillis();
+                final Long last = mLastRefresh.get(key);
+                if (last != null && now - last < mWindow) {
+                    mPending.add(key);
+                    sendMessageAtTime(obtainMessage(MSG_REFRESH, key), last + mWindow);
+                    return;
+                }
+                mLastRefresh.put(key, now);
+            }
+            RemotePreferenceUpdater.notifyChanged(mContext, key);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final String key = (String) msg.obj;
+            synchronized (this) {
+                mPending.remove(key);
+                mLastRefresh.put(key, SystemClock.uptimeMillis());
+            }
+            if (DEBUG) Log.d(TAG, "Sending coalesced refresh for " + key);
+            RemotePreferenceUpdater.notifyChanged(mContext, key);
+        }
+    }
+
     public interface Refreshable extends SettingsHelper.OnSettingsChangeListener {
         public interface SummaryProvider {
             public String getSummary(Context context, String key);
+
+            /**
+             * @return the content URIs the summary depends on, or null if the summary
+             * can't be cached
+             */
+            public Uri[] getTriggerUris(Context context);
         }
     }
 }
@@ -17,6 +17,7 @@
 package org.cyanogenmod.cmparts;
 
 import android.content.Context;
+import android.net.Uri;
 import android.os.Bundle;
 
 import cyanogenmod.providers.CMSettings;
@@ -42,5 +43,12 @@ public class PrivacySettings extends SettingsPreferenceFragment {
             }
             return null;
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            return new Uri[] {
+                    CMSettings.Secure.getUriFor(CMSettings.Secure.PRIVACY_GUARD_DEFAULT)
+            };
+        }
     };
 }
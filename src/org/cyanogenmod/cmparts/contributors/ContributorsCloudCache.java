@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.contributors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A disk cache of the rendered contributors cloud preview, so a cold open only needs to
+ * read one file instead of drawing every contributor name again. The preview is an
+ * {@link Bitmap.Config#ALPHA_8} mask, which the platform can't compress, so the raw pixels
+ * are stored after a small header.
+ */
+/* package */ class ContributorsCloudCache {
+
+    private static final String TAG = "ContributorsCloud";
+
+    private static final String CACHE_DIR = "contributors_cloud";
+    private static final String ENTRY_SUFFIX = ".a8";
+
+    // Bump when the way the cloud is rendered changes, so old entries aren't used anymore
+    private static final int CACHE_VERSION = 2;
+
+    // magic, width, height
+    private static final int MAGIC = 0x43434d31;
+    private static final int HEADER_SIZE = 12;
+
+    private ContributorsCloudCache() {
+    }
+
+    /**
+     * @return the cache key of a cloud rendered from the database generated at {@code date},
+     * with the passed bitmap size. Colors are applied when the mask is drawn, so they are
+     * not part of the key.
+     */
+    static String getKey(long date, int size) {
+        return CACHE_VERSION + "_" + date + "_" + size;
+    }
+
+    /**
+     * @param reuse a mask to read the pixels into if it has the cached size, or null
+     * @return the cached (mutable) mask for the passed key, or null if there isn't a valid one
+     */
+    static Bitmap get(Context context, String key, Bitmap reuse) {
+        File file = getFile(context, key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        FileInputStream is = null;
+        Bitmap bitmap = null;
+        boolean interrupted = false;
+        try {
+            is = new FileInputStream(file);
+            FileChannel channel = is.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() >= HEADER_SIZE && buffer.getInt() == MAGIC) {
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                if (width > 0 && height > 0 && buffer.remaining() == width * height) {
+                    if (reuse != null && reuse.getWidth() == width
+                            && reuse.getHeight() == height) {
+                        bitmap = reuse;
+                    } else {
+                        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+                    }
+                    if (bitmap.getByteCount() == buffer.remaining()) {
+                        bitmap.copyPixelsFromBuffer(buffer);
+                    } else {
+                        // Rows are padded. Don't bother, just render the cloud again
+                        if (bitmap != reuse) {
+                            bitmap.recycle();
+                        }
+                        bitmap = null;
+                    }
+                }
+            }
+        } catch (ClosedByInterruptException | InterruptedIOException ex) {
+            // The entry may be fine, it just couldn't be read this time
+            interrupted = true;
+            if (bitmap != null && bitmap != reuse) {
+                bitmap.recycle();
+            }
+            bitmap = null;
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to read cloud cache file " + file, ex);
+            if (bitmap != null && bitmap != reuse) {
+                bitmap.recycle();
+            }
+            bitmap = null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+
+        if (bitmap == null && !interrupted) {
+            Log.w(TAG, "Discarding invalid cloud cache file " + file);
+            file.delete();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Store the bitmap in the cache, replacing any other cached bitmap. The other
+     * bitmaps are kept if the new one can't be stored.
+     */
+    static void put(Context context, String key, Bitmap bitmap) {
+        File dir = getDirectory(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create cloud cache directory " + dir);
+            return;
+        }
+
+        // Write to a temporary file, so a partial write never looks like a valid entry.
+        // The pixels are copied straight into the mapped file, rather than through a heap
+        // buffer of the size of the mask.
+        File file = getFile(context, key);
+        File tmp = new File(dir, key + ".tmp");
+        RandomAccessFile os = null;
+        try {
+            os = new RandomAccessFile(tmp, "rw");
+            os.setLength(0);
+            MappedByteBuffer buffer = os.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + bitmap.getByteCount());
+            buffer.putInt(MAGIC).putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+            bitmap.copyPixelsToBuffer(buffer);
+            os.close();
+            os = null;
+            if (tmp.renameTo(file)) {
+                clear(context, file);
+            } else {
+                Log.w(TAG, "Cannot store cloud cache file " + file);
+            }
+        } catch (ClosedByInterruptException | InterruptedIOException ex) {
+            // Leave the cache as it was
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to write cloud cache file " + file, ex);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Remove every cached bitmap.
+     */
+    static void clear(Context context) {
+        clear(context, null);
+    }
+
+    /**
+     * Remove the stored entries other than {@code keep}. The temporary files are left
+     * alone: they belong to writers still in progress, which delete them when done.
+     */
+    private static void clear(Context context, File keep) {
+        File[] files = getDirectory(context).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(ENTRY_SUFFIX) && !file.equals(keep)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    private static File getFile(Context context, String key) {
+        return new File(getDirectory(context), key + ENTRY_SUFFIX);
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.contributors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.cyanogenmod.cmparts.contributors.ContributorsCloudRenderer.Contributor;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A drawable that displays the contributors cloud as a tile pyramid. A low resolution preview
+ * of the whole cloud is drawn when zoomed out, and when zoomed in the tiles of the level that
+ * best matches the current display scale are drawn instead (the preview fills the holes until
+ * they are ready). Only the tiles that intersect the visible viewport are rendered (in a
+ * background pool), and off-screen tiles are evicted through a bounded LRU. The tiles of the
+ * other levels are dropped as soon as the level changes. Switching to a finer level waits
+ * until zooming settles, so a pinch doesn't render tiles of every level it goes through.
+ * <p/>
+ * The preview and the tiles are {@link Bitmap.Config#ALPHA_8} coverage masks of every name
+ * but the selected one, tinted with the foreground color when drawn. The selected name is
+ * drawn on top of them with the selected color. Selecting a contributor only redraws the
+ * regions of the previous and the new selected names in the preview, and drops the tiles
+ * that intersect any of both names.
+ */
+/* package */ class ContributorsCloudDrawable extends Drawable {
+
+    private static final String TAG = "ContributorsCloud";
+
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_LEVEL = 6;
+
+    // Allow a small upscale of the current level before switching to the next one
+    private static final float LEVEL_TOLERANCE = 0.25f;
+
+    // Time the display scale must be stable before rendering the tiles of a finer level
+    private static final long ZOOM_SETTLE_MS = 150;
+
+    private static final ExecutorService sTileExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final ContributorsCloudRenderer mRenderer;
+    private final Bitmap mPreview;
+    private final float mPreviewScale;
+
+    private Contributor mSelected;
+    private int mSelectionGeneration;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Masks are drawn with the color of the paint
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mSelectedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF mTileRect = new RectF();
+    private final Rect mDirtyRect = new Rect();
+
+    // Tiles are only accessed from the main thread
+    private final LruCache<Long, Bitmap> mTiles;
+    private final Set<Long> mPendingTiles = new HashSet<>();
+
+    // The visible region of the cloud (in cloud coordinates) and the level that covers it.
+    // Read from the tile workers to drop requests that are no longer needed
+    private volatile int mLevel;
+    private int mTargetLevel;
+    private volatile float mVisibleLeft, mVisibleTop, mVisibleRight, mVisibleBottom;
+
+    // Read from the tile workers too
+    private volatile boolean mReleased;
+
+    private final Runnable mZoomSettledRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReleased) {
+                setLevel(mTargetLevel);
+                invalidateSelf();
+            }
+        }
+    };
+
+    /**
+     * @param renderer the renderer of the cloud
+     * @param preview a mutable mask of the whole cloud, as drawn by the renderer
+     */
+    ContributorsCloudDrawable(ContributorsCloudRenderer renderer, Bitmap preview) {
+        mRenderer = renderer;
+        mPreview = preview;
+        mPreviewScale = (float) preview.getWidth() / ContributorsCloudRenderer.CLOUD_SIZE;
+        mPaint.setColor(renderer.getColorForeground());
+        mSelectedPaint.setColor(renderer.getColorSelected());
+        mTiles = new LruCache<Long, Bitmap>(1) {
+            @Override
+            protected void entryRemoved(boolean evicted, Long key,
+                    Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    oldValue.recycle();
+                }
+            }
+        };
+    }
+
+    ContributorsCloudRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * Change the selected contributor, redrawing only the regions of the previous and the
+     * new selected names.
+     *
+     * @param contributor the new selected contributor, or null to clear the selection
+     */
+    void setSelectedContributor(Contributor contributor) {
+        if (mReleased) {
+            return;
+        }
+
+        final Contributor oldSelected = mSelected;
+        mSelected = contributor;
+        mRenderer.setSelectedId(contributor != null ? contributor.mId : -1);
+        mSelectionGeneration++;
+
+        // The previous selected name must be back in the mask, and the new one removed
+        Canvas canvas = new Canvas(mPreview);
+        if (oldSelected != null) {
+            redrawPreview(canvas, oldSelected.mBounds);
+            invalidateTiles(oldSelected.mBounds);
+        }
+        if (contributor != null) {
+            redrawPreview(canvas, contributor.mBounds);
+            invalidateTiles(contributor.mBounds);
+        }
+
+        invalidateSelf();
+    }
+
+    /**
+     * Update the visible viewport of the drawable.
+     *
+     * @param displayRect the rect of the drawable once mapped to the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    void setViewport(RectF displayRect, int viewWidth, int viewHeight) {
+        if (mReleased || displayRect.width() <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+            return;
+        }
+
+        final float scale = displayRect.width() / ContributorsCloudRenderer.CLOUD_SIZE;
+        final int size = ContributorsCloudRenderer.CLOUD_SIZE;
+        mVisibleLeft = Math.max(0, -displayRect.left / scale);
+        mVisibleTop = Math.max(0, -displayRect.top / scale);
+        mVisibleRight = Math.min(size, (viewWidth - displayRect.left) / scale);
+        mVisibleBottom = Math.min(size, (viewHeight - displayRect.top) / scale);
+
+        double ratio = Math.log(scale / mPreviewScale) / Math.log(2);
+        final int level = Math.max(0,
+                Math.min(MAX_LEVEL, (int) Math.ceil(ratio - LEVEL_TOLERANCE)));
+        if (level != mTargetLevel) {
+            mTargetLevel = level;
+            mHandler.removeCallbacks(mZoomSettledRunnable);
+            if (level < mLevel) {
+                // Zooming out. A coarser level is cheaper, so use it right away
+                setLevel(level);
+            } else {
+                // Zooming in. Keep upscaling the current level until the zoom settles
+                mHandler.postDelayed(mZoomSettledRunnable, ZOOM_SETTLE_MS);
+            }
+        }
+
+        // The cache must be able to hold at least every visible tile plus some
+        // margin, otherwise the visible tiles would evict each other
+        int visible = (viewWidth / TILE_SIZE + 2) * (viewHeight / TILE_SIZE + 2);
+        int maxTiles = visible + visible / 2;
+        if (mTiles.maxSize() < maxTiles) {
+            mTiles.resize(maxTiles);
+        }
+
+        invalidateSelf();
+    }
+
+    /**
+     * Switch the level the tiles are drawn from, and drop the tiles of the other levels,
+     * which aren't visible anymore
+     */
+    private void setLevel(int level) {
+        if (level == mLevel) {
+            return;
+        }
+        mLevel = level;
+        for (Long key : mTiles.snapshot().keySet()) {
+            if (getTileLevel(key) != level) {
+                mTiles.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Release all the resources held by this drawable. The drawable can't be used anymore.
+     *
+     * @return the preview mask. It isn't recycled, so the caller can reuse it or must
+     * recycle it.
+     */
+    Bitmap release() {
+        mReleased = true;
+        mHandler.removeCallbacks(mZoomSettledRunnable);
+        mPendingTiles.clear();
+        mTiles.evictAll();
+        return mPreview;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mReleased) {
+            return;
+        }
+
+        final int level = mLevel;
+        if (level == 0) {
+            // The preview is good enough for the current scale
+            canvas.drawBitmap(mPreview, null, getBounds(), mPaint);
+        } else {
+            drawTiles(canvas, level);
+        }
+
+        final Contributor selected = mSelected;
+        if (selected != null) {
+            mRenderer.drawSelected(canvas, mSelectedPaint, selected);
+        }
+    }
+
+    private void drawTiles(Canvas canvas, int level) {
+        final float tileScale = getTileScale(level);
+        final float tileSize = TILE_SIZE / tileScale;
+        final int tiles = getTileCount(level);
+        final int left = (int) (mVisibleLeft / tileSize);
+        final int top = (int) (mVisibleTop / tileSize);
+        final int right = Math.min(tiles - 1, (int) (mVisibleRight / tileSize));
+        final int bottom = Math.min(tiles - 1, (int) (mVisibleBottom / tileSize));
+        for (int ty = top; ty <= bottom; ty++) {
+            for (int tx = left; tx <= right; tx++) {
+                long key = getTileKey(level, tx, ty);
+                Bitmap tile = mTiles.get(key);
+                mTileRect.set(tx * tileSize, ty * tileSize,
+                        (tx + 1) * tileSize, (ty + 1) * tileSize);
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else {
+                    // Fill the hole with the preview until the tile is ready
+                    canvas.save();
+                    canvas.clipRect(mTileRect);
+                    canvas.drawBitmap(mPreview, null, getBounds(), mPaint);
+                    canvas.restore();
+                    requestTile(level, tx, ty, key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return ContributorsCloudRenderer.CLOUD_SIZE;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return ContributorsCloudRenderer.CLOUD_SIZE;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        mSelectedPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        mSelectedPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    private void requestTile(final int level, final int tx, final int ty, final long key) {
+        if (!mPendingTiles.add(key)) {
+            return;
+        }
+
+        final int generation = mSelectionGeneration;
+        sTileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap tile = isTileVisible(level, tx, ty) ? renderTile(level, tx, ty) : null;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileRendered(key, tile, generation);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onTileRendered(long key, Bitmap tile, int generation) {
+        mPendingTiles.remove(key);
+        if (tile == null) {
+            return;
+        }
+        if (mReleased || generation != mSelectionGeneration) {
+            // The tile may contain a stale selection. Request it again
+            tile.recycle();
+            invalidateSelf();
+            return;
+        }
+        mTiles.put(key, tile);
+        invalidateSelf();
+    }
+
+    private boolean isTileVisible(int level, int tx, int ty) {
+        if (mReleased || level != mLevel) {
+            return false;
+        }
+        final float tileSize = TILE_SIZE / getTileScale(level);
+        final float left = tx * tileSize;
+        final float top = ty * tileSize;
+        return left < mVisibleRight && left + tileSize > mVisibleLeft
+                && top < mVisibleBottom && top + tileSize > mVisibleTop;
+    }
+
+    private Bitmap renderTile(int level, int tx, int ty) {
+        final float tileScale = getTileScale(level);
+        final float tileSize = TILE_SIZE / tileScale;
+        try {
+            Bitmap tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ALPHA_8);
+            Canvas canvas = new Canvas(tile);
+            canvas.scale(tileScale, tileScale);
+            canvas.translate(-tx * tileSize, -ty * tileSize);
+            canvas.clipRect(tx * tileSize, ty * tileSize, (tx + 1) * tileSize, (ty + 1) * tileSize);
+            mRenderer.draw(canvas, tileScale);
+            return tile;
+        } catch (Exception | OutOfMemoryError ex) {
+            Log.w(TAG, "Failed to render cloud tile " + level + "/" + tx + "/" + ty, ex);
+        }
+        return null;
+    }
+
+    private void invalidateTiles(RectF bounds) {
+        for (long key : mTiles.snapshot().keySet()) {
+            final int level = (int) (key >> 48);
+            final float tileSize = TILE_SIZE / getTileScale(level);
+            final float left = ((key >> 24) & 0xffffff) * tileSize;
+            final float top = (key & 0xffffff) * tileSize;
+            if (bounds.intersects(left, top, left + tileSize, top + tileSize)) {
+                mTiles.remove(key);
+            }
+        }
+    }
+
+    private void redrawPreview(Canvas canvas, RectF bounds) {
+        getDirtyRect(bounds, mDirtyRect);
+        if (mDirtyRect.isEmpty()) {
+            return;
+        }
+        canvas.save();
+        canvas.clipRect(mDirtyRect);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        canvas.scale(mPreviewScale, mPreviewScale);
+        mRenderer.draw(canvas, mPreviewScale);
+        canvas.restore();
+    }
+
+    private void getDirtyRect(RectF bounds, Rect out) {
+        // Include a small margin for the antialiased edges of the text
+        out.set((int) Math.floor(bounds.left * mPreviewScale) - 2,
+                (int) Math.floor(bounds.top * mPreviewScale) - 2,
+                (int) Math.ceil(bounds.right * mPreviewScale) + 2,
+                (int) Math.ceil(bounds.bottom * mPreviewScale) + 2);
+        if (!out.intersect(0, 0, mPreview.getWidth(), mPreview.getHeight())) {
+            out.setEmpty();
+        }
+    }
+
+    private float getTileScale(int level) {
+        return mPreviewScale * (1 << level);
+    }
+
+    private int getTileCount(int level) {
+        return (int) Math.ceil(ContributorsCloudRenderer.CLOUD_SIZE * getTileScale(level)
+                / TILE_SIZE);
+    }
+
+    private static long getTileKey(int level, int tx, int ty) {
+        return ((long) level << 48) | ((long) tx << 24) | ty;
+    }
+
+    private static int getTileLevel(long key) {
+        return (int) (key >>> 48);
+    }
+}
@@ -21,19 +21,15 @@ import android.animation.Animator.AnimatorListener;
 import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.app.Activity;
-import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
-import android.content.res.Resources;
-import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
+import android.graphics.Color;
+import android.graphics.PointF;
+import android.graphics.RectF;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
@@ -46,6 +42,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.animation.LinearInterpolator;
@@ -59,29 +56,55 @@ import android.widget.TextView;
 
 import org.cyanogenmod.cmparts.PartsActivity;
 import org.cyanogenmod.cmparts.R;
+import org.cyanogenmod.cmparts.contributors.ContributorsCloudRenderer.Contributor;
 import org.cyanogenmod.cmparts.search.BaseSearchIndexProvider;
 import org.cyanogenmod.cmparts.search.SearchIndexableRaw;
 import org.cyanogenmod.cmparts.search.Searchable;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ContributorsCloudFragment extends Fragment implements SearchView.OnQueryTextListener,
         SearchView.OnCloseListener, MenuItem.OnActionExpandListener, Searchable {
 
     private static final String TAG = "ContributorsCloud";
 
-    private static final String DB_NAME = "contributors.db";
+    static final String DB_NAME = "contributors.db";
+
+    // The SQLite database header holds the user_version, the change counter, the page
+    // size and the page count, so it tells apart two builds of the database
+    private static final int DB_HEADER_SIZE = 100;
+
+    private static final int EXTRACT_BUFFER_SIZE = 64 * 1024;
 
     private static final String STATE_SELECTED_CONTRIBUTOR = "state_selected_contributor";
 
+    // Wait for the user to stop typing before running a search
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+
+    private static final ExecutorService sSearchExecutor = Executors.newSingleThreadExecutor();
+
+    // The preview mask of the last released cloud, reused by the next render (for example,
+    // after a configuration change) instead of allocating a new one
+    private static final AtomicReference<Bitmap> sReusableMask = new AtomicReference<>();
+
     private ContributorsCloudViewController mViewController;
     private ImageView mImageView;
     private View mLoadingView;
@@ -89,7 +112,23 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     private ListView mSearchResults;
     private ContributorsAdapter mSearchAdapter;
 
-    private SQLiteDatabase mDatabase;
+    private ContributorsCloudModel mModel;
+
+    private ContributorsCloudDrawable mCloudDrawable;
+
+    // The only loader or selection task allowed to deliver its result. Starting a new one
+    // cancels the previous one, so requests never queue up
+    private AsyncTask<Void, Void, ?> mLoaderTask;
+
+    // Whether the masks of cancelled renders may be kept for reuse. Cleared when the
+    // fragment goes away for good
+    private boolean mReuseMasks = true;
+    private ContributorsCloudIndex mCloudIndex;
+
+    // Accessed only from the search executor
+    private ContributorsSearchIndex mSearchIndex;
+    private final AtomicInteger mSearchGeneration = new AtomicInteger();
+    private String mPendingQuery;
 
     private int mTotalContributors;
     private int mTotalCommits;
@@ -110,7 +149,8 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     private static final String KEY_PREFIX = "contributor_";
 
     private static class ViewInfo {
-        Bitmap mBitmap;
+        ContributorsCloudDrawable mDrawable;
+        ContributorsCloudIndex mIndex;
         float mFocusX;
         float mFocusY;
     }
@@ -154,7 +194,8 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
-    private class ContributorCloudLoaderTask extends AsyncTask<Void, Void, Boolean> {
+    private class ContributorCloudLoaderTask extends AsyncTask<Void, Void, Boolean>
+            implements ContributorsCloudRenderer.Cancellable {
         private ViewInfo mViewInfo;
         private final boolean mNotify;
         private final boolean mNavigate;
@@ -174,11 +215,13 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
             try {
                 loadContributorsInfo(getActivity());
                 loadUserInfo(getActivity());
-                mViewInfo = generateViewInfo(getActivity(), mSelectedContributor);
-                if (mViewInfo != null && mViewInfo.mBitmap != null) {
+                mViewInfo = generateViewInfo(getActivity(), mSelectedContributor, this);
+                if (mViewInfo != null && mViewInfo.mDrawable != null) {
                     return Boolean.TRUE;
                 }
 
+            } catch (CancellationException | InterruptedException ex) {
+                // Superseded by a newer request, or the fragment went away
             } catch (Exception ex) {
                 Log.e(TAG, "Failed to generate cloud bitmap", ex);
             }
@@ -187,9 +230,10 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
 
         @Override
         protected void onPostExecute(Boolean result) {
+            mLoaderTask = null;
             if (result == true) {
-                mImageView.setImageBitmap(mViewInfo.mBitmap);
-                mViewController.update();
+                setCloudDrawable(mViewInfo.mDrawable);
+                mCloudIndex = mViewInfo.mIndex;
                 if (mNotify) {
                     if (mNavigate) {
                         onLoadCloudDataSuccess(mViewInfo.mFocusX, mViewInfo.mFocusY);
@@ -198,10 +242,10 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
                     }
                 }
             } else {
-                mImageView.setImageBitmap(null);
-                mViewController.update();
-                if (mViewInfo != null && mViewInfo.mBitmap != null) {
-                    mViewInfo.mBitmap.recycle();
+                setCloudDrawable(null);
+                mCloudIndex = null;
+                if (mViewInfo != null && mViewInfo.mDrawable != null) {
+                    releaseCloudDrawable(mViewInfo.mDrawable, true);
                 }
                 if (mNotify) {
                     onLoadCloudDataFailed();
@@ -210,8 +254,64 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
 
         @Override
-        protected void onCancelled() {
-            onLoadCloudDataFailed();
+        protected void onCancelled(Boolean result) {
+            if (mViewInfo != null && mViewInfo.mDrawable != null) {
+                releaseCloudDrawable(mViewInfo.mDrawable, mReuseMasks);
+            }
+            if (mLoaderTask == this) {
+                // Not superseded by a newer request
+                mLoaderTask = null;
+                onLoadCloudDataFailed();
+            }
+        }
+    }
+
+    private class ContributorSelectionTask extends AsyncTask<Void, Void, Contributor> {
+        private final ContributorsCloudDrawable mDrawable;
+        private final int mContributorId;
+        private final boolean mNotify;
+        private final boolean mNavigate;
+
+        public ContributorSelectionTask(ContributorsCloudDrawable drawable,
+                int contributorId, boolean notify, boolean navigate) {
+            mDrawable = drawable;
+            mContributorId = contributorId;
+            mNotify = notify;
+            mNavigate = navigate;
+        }
+
+        @Override
+        protected Contributor doInBackground(Void... params) {
+            try {
+                loadUserInfo(getActivity());
+                if (mContributorId != -1) {
+                    return mDrawable.getRenderer().getContributor(mContributorId);
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "Failed to load contributor " + mContributorId, ex);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Contributor contributor) {
+            mLoaderTask = null;
+            if (mDrawable != mCloudDrawable) {
+                // The cloud was reloaded in the meantime
+                return;
+            }
+
+            mDrawable.setSelectedContributor(contributor);
+            if (mNotify) {
+                if (contributor != null && mNavigate) {
+                    PointF focus = new PointF();
+                    ContributorsCloudRenderer.computeFocus(contributor,
+                            mImageView.getWidth(), mImageView.getHeight(), focus);
+                    onLoadCloudDataSuccess(focus.x, focus.y);
+                } else {
+                    onLoadCloudDataSuccess(-1, -1);
+                }
+            }
         }
     }
 
@@ -231,11 +331,25 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mDatabase != null && mDatabase.isOpen()) {
-            try {
-                mDatabase.close();
-            } catch (SQLException ex) {
-                // Ignore
+        mSearchGeneration.incrementAndGet();
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mSearchRunnable);
+        }
+        // Keep the mask only if the cloud is going to be shown again right away
+        final boolean reuse = getActivity() != null && getActivity().isChangingConfigurations();
+        mReuseMasks = reuse;
+        if (mLoaderTask != null) {
+            mLoaderTask.cancel(false);
+            mLoaderTask = null;
+        }
+        if (mCloudDrawable != null) {
+            releaseCloudDrawable(mCloudDrawable, reuse);
+            mCloudDrawable = null;
+        }
+        if (!reuse) {
+            Bitmap mask = sReusableMask.getAndSet(null);
+            if (mask != null) {
+                mask.recycle();
             }
         }
     }
@@ -285,9 +399,14 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
                 mSearchView.setQuery("", false);
                 mSelectedContributor = -1;
 
-                // Load the data from the database and fill the image
-                ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(false, false);
-                task.execute();
+                if (mCloudDrawable != null) {
+                    // Just clear the selection of the current cloud
+                    startLoaderTask(
+                            new ContributorSelectionTask(mCloudDrawable, -1, false, false));
+                } else {
+                    // Load the data from the database and fill the image
+                    startLoaderTask(new ContributorCloudLoaderTask(false, false));
+                }
                 break;
 
             case R.id.contributor_info:
@@ -314,6 +433,23 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         mViewController = new ContributorsCloudViewController(mImageView);
         mViewController.setMaximumScale(20f);
         mViewController.setMediumScale(7f);
+        mViewController.setOnMatrixChangeListener(
+                new ContributorsCloudViewController.OnMatrixChangedListener() {
+            @Override
+            public void onMatrixChanged(RectF rect) {
+                if (mCloudDrawable != null) {
+                    mCloudDrawable.setViewport(rect,
+                            mImageView.getWidth(), mImageView.getHeight());
+                }
+            }
+        });
+        mViewController.setOnPhotoTapListener(
+                new ContributorsCloudViewController.OnPhotoTapListener() {
+            @Override
+            public void onPhotoTap(View view, float x, float y) {
+                onCloudTap(x, y);
+            }
+        });
 
         mSearchResults = (ListView) v.findViewById(R.id.contributors_cloud_search_results);
         mSearchAdapter = new ContributorsAdapter(getActivity());
@@ -328,8 +464,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         });
 
         // Load the data from the database and fill the image
-        ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(true, false);
-        task.execute();
+        startLoaderTask(new ContributorCloudLoaderTask(true, false));
 
         return v;
     }
@@ -383,14 +518,54 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
 
     @Override
     public boolean onQueryTextChange(String newText) {
-        List<ContributorsDataHolder> contributors = new ArrayList<>();
-        if (!TextUtils.isEmpty(newText) || newText.length() >= 3) {
-            contributors.addAll(performFilter(getActivity(), newText));
+        // Any running or pending search is superseded by this one
+        mSearchGeneration.incrementAndGet();
+        mHandler.removeCallbacks(mSearchRunnable);
+
+        if (TextUtils.isEmpty(newText)) {
+            showSearchResults(new ArrayList<ContributorsDataHolder>());
+        } else {
+            mPendingQuery = newText;
+            mHandler.postDelayed(mSearchRunnable, SEARCH_DEBOUNCE_MS);
         }
+        return true;
+    }
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (getActivity() == null) {
+                return;
+            }
+            final String query = mPendingQuery;
+            final int generation = mSearchGeneration.get();
+            final Context context = getActivity().getApplicationContext();
+            sSearchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mSearchGeneration.get()) {
+                        // Superseded before it started
+                        return;
+                    }
+                    final List<ContributorsDataHolder> results = performFilter(context, query);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Only deliver the results of the newest query
+                            if (generation == mSearchGeneration.get()) {
+                                showSearchResults(results);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    private void showSearchResults(List<ContributorsDataHolder> contributors) {
         mSearchAdapter.clear();
         mSearchAdapter.addAll(contributors);
         mSearchAdapter.notifyDataSetChanged();
-        return true;
     }
 
     private void showMenuItems(boolean visible) {
@@ -474,158 +649,79 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
-    private synchronized ViewInfo generateViewInfo(Context context, int selectedId) {
+    private synchronized ViewInfo generateViewInfo(Context context, int selectedId,
+            ContributorsCloudRenderer.Cancellable cancellable) throws InterruptedException {
         Bitmap bitmap = null;
-        float focusX = -1, focusY = -1;
-        final Resources res = context.getResources();
+        PointF focus = new PointF(-1, -1);
 
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, true);
-        if (db == null) {
-            // We don't have a valid database reference
+        // Load the contributors
+        ContributorsCloudModel model = getModel(context);
+        if (model == null) {
+            // We don't have valid cloud information
             return null;
         }
-
-        // Extract original image size
-        Cursor c = db.rawQuery("select value from info where key = ?;", new String[]{"orig_size"});
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return null;
+        ContributorsCloudRenderer renderer = new ContributorsCloudRenderer(context, model);
+
+        // Create a preview mask of the whole cloud. A full resolution ALPHA_8 mask takes
+        // the same memory as a quarter size ARGB_8888 bitmap, so it's affordable even on
+        // small heaps. Zoomed regions are rendered later as tiles by the drawable
+        int psize = ContributorsCloudRenderer.CLOUD_SIZE;
+
+        // Reuse the mask of a released cloud, if there is one of the same size
+        Bitmap reusable = sReusableMask.getAndSet(null);
+        if (reusable != null && (reusable.isRecycled()
+                || reusable.getWidth() != psize || reusable.getHeight() != psize)) {
+            reusable.recycle();
+            reusable = null;
         }
-        int osize = c.getInt(0);
-        c.close();
 
-        // Query the metadata table to extract all the commits information
-        c = db.rawQuery("select id, name, x, y, r, fs from metadata;", null);
-        if (c == null) {
-            // We don't have a valid cursor reference
-            return null;
+        // The base cloud (without a selected contributor) is always the same for a
+        // database, so try to use the one rendered previously
+        String cacheKey = null;
+        if (model.mDate != -1) {
+            cacheKey = ContributorsCloudCache.getKey(model.mDate, psize);
+            bitmap = ContributorsCloudCache.get(context, cacheKey, reusable);
         }
-        try {
-            int colorForeground = res.getColor(R.color.contributors_cloud_fg_color);
-            int colorSelected = res.getColor(R.color.contributors_cloud_selected_color);
-            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
-
-            // Create a bitmap large enough to hold the cloud (use large bitmap when available)
-            int bsize = hasLargeHeap() ? 2048 : 1024;
-            bitmap = Bitmap.createBitmap(bsize, bsize, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-
-            // Draw every contributor name
-            while (c.moveToNext()) {
-                int id = c.getInt(c.getColumnIndexOrThrow("id"));
-
-                String name = c.getString(c.getColumnIndexOrThrow("name"));
-                float x = translate(c.getFloat(c.getColumnIndexOrThrow("x")), osize, bsize);
-                float y = translate(c.getFloat(c.getColumnIndexOrThrow("y")), osize, bsize);
-                int r = c.getInt(c.getColumnIndexOrThrow("r"));
-                float fs = translate(c.getFloat(c.getColumnIndexOrThrow("fs")), osize, bsize);
-                if (id < 0) {
-                    y -= translate(fs, osize, bsize);
-                }
-
-                // Choose the correct paint
-                paint.setColor(selectedId == id ? colorSelected : colorForeground);
-                paint.setTextSize(fs);
 
-                // Check text rotation
-                float w = 0f, h = 0f;
-                if (selectedId == id || r != 0) {
-                    Rect bounds = new Rect();
-                    paint.getTextBounds(name, 0, name.length(), bounds);
-                    h = bounds.height();
-                }
-                if (selectedId == id || r == -1) {
-                    w = paint.measureText(name);
-                }
-                if (r == 0) {
-                    // Horizontal
-                    canvas.drawText(name, x, y, paint);
-                } else {
-                    if (r == -1) {
-                        // Vertical (-90 rotation)
-                        canvas.save();
-                        canvas.translate(h, w - h);
-                        canvas.rotate(-90, x, y);
-                        canvas.drawText(name, x, y, paint);
-                        canvas.restore();
-                    } else {
-                        // Vertical (+90 rotation)
-                        canvas.save();
-                        canvas.translate(h/2, -h);
-                        canvas.rotate(90, x, y);
-                        canvas.drawText(name, x, y, paint);
-                        canvas.restore();
-                    }
-                }
-
-                // Calculate focus
-                if (selectedId == id) {
-                    int iw = mImageView.getWidth();
-                    int ih = mImageView.getHeight();
-                    int cx = iw / 2;
-                    int cy = ih / 2;
-                    int cbx = bsize / 2;
-                    int cby = bsize / 2;
-                    float cw = 0f;
-                    float ch = 0f;
-                    if (r == 0) {
-                        cw = translate(w, bsize, Math.min(iw, ih)) / 2;
-                        ch = translate(h, bsize, Math.min(iw, ih)) / 2;
-                    } else {
-                        cw = translate(h, bsize, Math.min(iw, ih)) / 2;
-                        ch = translate(w, bsize, Math.min(iw, ih)) / 2;
-                    }
+        if (bitmap == null) {
+            if (reusable != null) {
+                reusable.eraseColor(Color.TRANSPARENT);
+                bitmap = reusable;
+            } else {
+                bitmap = Bitmap.createBitmap(psize, psize, Bitmap.Config.ALPHA_8);
+            }
+            renderer.drawBands(bitmap, cancellable);
 
-                    focusX = cx + translate(x - cbx, bsize, iw) + cw;
-                    focusY = cy + translate(y - cby, bsize, ih) + ch;
-                }
+            if (cacheKey != null) {
+                ContributorsCloudCache.put(context, cacheKey, bitmap);
             }
+        }
 
-        } finally {
-            c.close();
+        // Draw the selection on top of the base cloud and calculate focus
+        ContributorsCloudDrawable drawable = new ContributorsCloudDrawable(renderer, bitmap);
+        if (selectedId != -1) {
+            Contributor contributor = renderer.getContributor(selectedId);
+            if (contributor != null) {
+                drawable.setSelectedContributor(contributor);
+                ContributorsCloudRenderer.computeFocus(contributor,
+                        mImageView.getWidth(), mImageView.getHeight(), focus);
+            }
         }
 
-        // Return the bitmap
+        // Return the drawable
         ViewInfo viewInfo = new ViewInfo();
-        viewInfo.mBitmap = bitmap;
-        viewInfo.mFocusX = focusX;
-        viewInfo.mFocusY = focusY;
+        viewInfo.mDrawable = drawable;
+        viewInfo.mIndex = renderer.buildIndex();
+        viewInfo.mFocusX = focus.x;
+        viewInfo.mFocusY = focus.y;
         return viewInfo;
     }
 
-    private synchronized SQLiteDatabase getDatabase(Context context, boolean retryCopyIfOpenFails) {
-        if (mDatabase == null) {
-            File dbPath = context.getDatabasePath(DB_NAME);
-            try {
-                mDatabase = SQLiteDatabase.openDatabase(dbPath.getAbsolutePath(),
-                        null, SQLiteDatabase.OPEN_READONLY);
-                if (mDatabase == null) {
-                    Log.e(TAG, "Cannot open cloud database: " + DB_NAME + ". db == null");
-                    return null;
-                }
-                return mDatabase;
-
-            } catch (SQLException ex) {
-                Log.e(TAG, "Cannot open cloud database: " + DB_NAME, ex);
-                if (mDatabase != null && mDatabase.isOpen()) {
-                    try {
-                        mDatabase.close();
-                    } catch (SQLException ex2) {
-                        // Ignore
-                    }
-                }
-
-                if (retryCopyIfOpenFails) {
-                    extractContributorsCloudDatabase(context);
-                    mDatabase = getDatabase(context, false);
-                }
-            }
-
-            // We don't have a valid connection
-            return null;
+    private synchronized ContributorsCloudModel getModel(Context context) {
+        if (mModel == null) {
+            mModel = ContributorsCloudModel.get(context);
         }
-        return mDatabase;
+        return mModel;
     }
 
     private void loadContributorsInfo(Context context) {
@@ -633,60 +729,31 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         mTotalCommits = -1;
         mLastUpdate = -1;
 
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, true);
-        if (db == null) {
-            // We don't have a valid database reference
-            return;
-        }
-
-        // Total contributors
-        Cursor c = db.rawQuery("select count(*) from metadata where id > 0;", null);
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return;
-        }
-        mTotalContributors = c.getInt(0);
-        c.close();
-
-        // Total commits
-        c = db.rawQuery("select sum(commits) from metadata where id > 0;", null);
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
+        ContributorsCloudModel model = getModel(context);
+        if (model == null) {
+            // We don't have valid cloud information
             return;
         }
-        mTotalCommits = c.getInt(0);
-        c.close();
 
-        // Last update
-        c = db.rawQuery("select value from info where key = ?;", new String[]{"date"});
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return;
-        }
-        mLastUpdate = c.getLong(0);
-        c.close();
+        mTotalContributors = model.mTotalContributors;
+        mTotalCommits = model.mTotalCommits;
+        mLastUpdate = model.mDate;
     }
 
     private void loadUserInfo(Context context) {
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, true);
-        if (db == null) {
-            // We don't have a valid database reference
+        ContributorsCloudModel model = getModel(context);
+        if (model == null) {
+            // We don't have valid cloud information
             return;
         }
 
-        // Total contributors
-        String[] args = new String[]{String.valueOf(mSelectedContributor)};
-        Cursor c = db.rawQuery("select m1.name, m1.username, m1.commits " +
-                               "from metadata as m1 where m1.id = ?;", args);
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
+        int i = model.indexOf(mSelectedContributor);
+        if (i == -1) {
             return;
         }
-        mContributorName = c.getString(0);
-        mContributorNick = c.getString(1);
-        mContributorCommits = c.getInt(2);
+        mContributorName = model.mNames[i];
+        mContributorNick = model.mUsernames[i];
+        mContributorCommits = model.mCommits[i];
     }
 
     private void showUserInfo(Context context) {
@@ -725,28 +792,21 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     }
 
     private List<ContributorsDataHolder> performFilter(Context context, String query) {
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, false);
-        if (db == null) {
-            // We don't have a valid database reference
-            return new ArrayList<>();
-        }
-
-        // Total contributors
-        String[] args = new String[]{String.valueOf(query.replaceAll("\\|", ""))};
-        Cursor c = db.rawQuery(
-                "select id, name || case when username is null then '' else ' <'||username||'>' end contributor " +
-                "from metadata where lower(filter) like lower('%' || ? || '%') and id > 0 " +
-                "order by commits desc", args);
-        if (c == null) {
-            // We don't have a valid cursor reference
-            return new ArrayList<>();
-        }
-        List<ContributorsDataHolder> results = new ArrayList<>();
-        while (c.moveToNext()) {
+        if (mSearchIndex == null) {
+            ContributorsCloudModel model = getModel(context);
+            if (model == null) {
+                // We don't have valid cloud information
+                return new ArrayList<>();
+            }
+            mSearchIndex = ContributorsSearchIndex.build(model);
+        }
+
+        int[] rows = mSearchIndex.query(query);
+        List<ContributorsDataHolder> results = new ArrayList<>(rows.length);
+        for (int row : rows) {
             ContributorsDataHolder result = new ContributorsDataHolder();
-            result.mId = c.getInt(0);
-            result.mLabel = c.getString(1);
+            result.mId = mSearchIndex.getId(row);
+            result.mLabel = mSearchIndex.getLabel(row);
             results.add(result);
         }
         return results;
@@ -757,51 +817,234 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     }
 
     private void onContributorSelected(int contributorId) {
+        onContributorSelected(contributorId, true);
+    }
+
+    private void onContributorSelected(int contributorId, boolean navigate) {
         mSelectedContributor = contributorId;
-        ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(true, true);
-        task.execute();
+        if (mCloudDrawable != null) {
+            // Only redraw the selected names on top of the current cloud
+            startLoaderTask(new ContributorSelectionTask(
+                    mCloudDrawable, contributorId, true, navigate));
+        } else {
+            startLoaderTask(new ContributorCloudLoaderTask(true, navigate));
+        }
         if (mSearchMenuItem != null) {
             mSearchMenuItem.collapseActionView();
         }
     }
 
-    private boolean hasLargeHeap() {
-        ActivityManager am = (ActivityManager) getActivity().getSystemService(Context.ACTIVITY_SERVICE);
-        return am.getMemoryClass() >= 96;
+    private void onCloudTap(float x, float y) {
+        if (mCloudIndex == null) {
+            return;
+        }
+
+        // Allow to miss the name by the touch slop
+        RectF displayRect = mViewController.getDisplayRect();
+        float slop = 0f;
+        if (displayRect != null && displayRect.width() > 0) {
+            slop = ViewConfiguration.get(getActivity()).getScaledTouchSlop()
+                    * ContributorsCloudRenderer.CLOUD_SIZE / displayRect.width();
+        }
+
+        int id = mCloudIndex.find(x * ContributorsCloudRenderer.CLOUD_SIZE,
+                y * ContributorsCloudRenderer.CLOUD_SIZE, slop);
+        if (id > 0 && id != mSelectedContributor) {
+            onContributorSelected(id, false);
+        }
+    }
+
+    private void setCloudDrawable(ContributorsCloudDrawable drawable) {
+        ContributorsCloudDrawable oldDrawable = mCloudDrawable;
+        mCloudDrawable = drawable;
+        mImageView.setImageDrawable(drawable);
+        mViewController.update();
+        if (oldDrawable != null && oldDrawable != drawable) {
+            releaseCloudDrawable(oldDrawable, true);
+        }
     }
 
-    private float translate(float v, int ssize, int dsize) {
-        return (v * dsize) / ssize;
+    private static void releaseCloudDrawable(ContributorsCloudDrawable drawable, boolean reuse) {
+        Bitmap mask = drawable.release();
+        if (reuse) {
+            mask = sReusableMask.getAndSet(mask);
+        }
+        if (mask != null) {
+            mask.recycle();
+        }
     }
 
+    private void startLoaderTask(AsyncTask<Void, Void, ?> task) {
+        if (mLoaderTask != null) {
+            // A queued task is dropped without running, and a running one stops at the
+            // next band. Don't interrupt it, that would abort the cache I/O midway
+            mLoaderTask.cancel(false);
+        }
+        mLoaderTask = task;
+        task.execute();
+    }
+
+    /**
+     * Extract the contributors database, unless the installed copy has the same SQLite
+     * header as the bundled one and isn't truncated. Only the headers are read in the
+     * common case.
+     */
+    public static void extractContributorsCloudDatabaseIfNeeded(Context context) {
+        final File databasePath = context.getDatabasePath(DB_NAME);
+        final byte[] installed = readDatabaseHeader(databasePath);
+        if (installed != null && databasePath.length() == getDatabaseLength(installed)
+                && Arrays.equals(installed, readBundledDatabaseHeader(context))) {
+            return;
+        }
+        extractContributorsCloudDatabase(context);
+    }
 
     public static void extractContributorsCloudDatabase(Context context) {
-        final int BUFFER = 1024;
-        InputStream is = null;
-        OutputStream os = null;
-        File databasePath = context.getDatabasePath(DB_NAME);
+        final File databasePath = context.getDatabasePath(DB_NAME);
+        final File tmpPath = new File(databasePath.getPath() + ".tmp");
+        final AssetManager assets = context.getResources().getAssets();
+        FileOutputStream os = null;
         try {
             databasePath.getParentFile().mkdir();
-            is = context.getResources().getAssets().open(DB_NAME, AssetManager.ACCESS_BUFFER);
-            os = new FileOutputStream(databasePath);
-            int read = -1;
-            byte[] data = new byte[BUFFER];
-            while ((read = is.read(data, 0, BUFFER)) != -1) {
-                os.write(data, 0, read);
+            os = new FileOutputStream(tmpPath);
+            copyAsset(assets, DB_NAME, os.getChannel());
+            os.getFD().sync();
+            os.close();
+            os = null;
+
+            // Replace the database at once, so a reader never sees a partial copy
+            if (!tmpPath.renameTo(databasePath)) {
+                Log.e(TAG, "Failed to install contributors database");
+                return;
             }
+
+            // The loaded model and the rendered cloud of the previous database
+            // are not valid anymore
+            ContributorsCloudModel.invalidate();
+            ContributorsCloudCache.clear(context);
         } catch (IOException ex) {
             Log.e(TAG, "Failed to extract contributors database");
         } finally {
-            if (is != null) {
+            if (os != null) {
                 try {
-                    is.close();
+                    os.close();
                 } catch (IOException ex) {
                     // Ignore
                 }
             }
+            tmpPath.delete();
         }
     }
 
+    /**
+     * Copy an asset to the passed channel. Uncompressed assets are transferred straight
+     * from the package file, the rest are streamed through a large buffer.
+     *
+     * @return the number of copied bytes
+     */
+    private static long copyAsset(AssetManager assets, String name, FileChannel out)
+            throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = assets.openFd(name);
+        } catch (IOException ex) {
+            // The asset is compressed
+        }
+
+        if (afd != null) {
+            FileInputStream is = null;
+            try {
+                is = afd.createInputStream();
+                final FileChannel in = is.getChannel();
+                final long start = afd.getStartOffset();
+                final long length = afd.getLength();
+                long position = 0;
+                while (position < length) {
+                    long count = in.transferTo(start + position, length - position, out);
+                    if (count <= 0) {
+                        throw new IOException("Unexpected end of asset " + name);
+                    }
+                    position += count;
+                }
+                return length;
+            } finally {
+                if (is != null) {
+                    is.close();
+                }
+                afd.close();
+            }
+        }
+
+        InputStream is = null;
+        try {
+            is = assets.open(name, AssetManager.ACCESS_STREAMING);
+            final ReadableByteChannel in = Channels.newChannel(is);
+            long position = 0;
+            long count;
+            while ((count = out.transferFrom(in, position, EXTRACT_BUFFER_SIZE)) > 0) {
+                position += count;
+            }
+            return position;
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * @return the header of the installed database, or null if it can't be read
+     */
+    private static byte[] readDatabaseHeader(File databasePath) {
+        if (!databasePath.isFile()) {
+            return null;
+        }
+        try {
+            return readHeader(new FileInputStream(databasePath));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the header of the database bundled in the assets, or null if it can't be read
+     */
+    private static byte[] readBundledDatabaseHeader(Context context) {
+        try {
+            return readHeader(context.getResources().getAssets().open(DB_NAME));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static byte[] readHeader(InputStream is) throws IOException {
+        try {
+            final byte[] header = new byte[DB_HEADER_SIZE];
+            int position = 0;
+            while (position < header.length) {
+                final int count = is.read(header, position, header.length - position);
+                if (count < 0) {
+                    return null;
+                }
+                position += count;
+            }
+            return header;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return the length of the database, from the page size and the page count of its header
+     */
+    private static long getDatabaseLength(byte[] header) {
+        final ByteBuffer buffer = ByteBuffer.wrap(header);
+        final int pageSize = buffer.getShort(16) & 0xffff;
+        final long pageCount = buffer.getInt(28) & 0xffffffffL;
+        // A page size of 1 stands for 65536
+        return (pageSize == 1 ? 65536 : pageSize) * pageCount;
+    }
+
     public static final Searchable.SearchIndexProvider SEARCH_INDEX_DATA_PROVIDER =
             new BaseSearchIndexProvider() {
 
@@ -809,35 +1052,21 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
                 public List<SearchIndexableRaw> getRawDataToIndex(Context context) {
 
                     // Index the top 100 contributors, for fun :)
-                    File dbPath = context.getDatabasePath(DB_NAME);
-                    SQLiteDatabase db = null;
-                    try {
-                        db = SQLiteDatabase.openDatabase(dbPath.getAbsolutePath(),
-                                null, SQLiteDatabase.OPEN_READONLY);
-                        if (db == null) {
-                            Log.e(TAG, "Cannot open cloud database: " + DB_NAME + ". db == null");
-                            return null;
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        if (db != null && db.isOpen()) {
-                            db.close();
-                        }
+                    ContributorsCloudModel model =
+                            ContributorsCloudModel.getIfReadable(context);
+                    if (model == null) {
                         return null;
                     }
 
                     List<SearchIndexableRaw> result = new ArrayList<>();
-                    Cursor c = db.rawQuery(
-                            "select id, username from metadata order by commits desc limit 100;", null);
-                    while (c.moveToNext()) {
+                    final int count = Math.min(100, model.mCount);
+                    for (int i = 0; i < count; i++) {
                         SearchIndexableRaw raw = new SearchIndexableRaw(context);
-                        raw.key = KEY_PREFIX + c.getString(0);
+                        raw.key = KEY_PREFIX + model.mIds[i];
                         raw.rank = 10;
-                        raw.title = c.getString(1);
+                        raw.title = model.mUsernames[i];
                         result.add(raw);
                     }
-                    c.close();
-                    db.close();
 
                     return result;
                 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.contributors;
+
+import java.util.Arrays;
+
+/**
+ * A spatial index over the bounds of the contributor names in the cloud, used to map a point
+ * of the cloud back to a contributor. The cloud is split in a uniform grid, and every name is
+ * referenced from every cell its bounds touch. All the data is held in primitive arrays.
+ */
+/* package */ class ContributorsCloudIndex {
+
+    private static final int GRID_SIZE = 64;
+
+    private final int mCount;
+    private final int[] mIds;
+    private final float[] mBounds;
+    private final float mCellSize;
+
+    // Entries of cell i are mCellEntries[mCellStart[i]] .. mCellEntries[mCellStart[i + 1] - 1]
+    private final int[] mCellStart;
+    private final int[] mCellEntries;
+
+    /**
+     * @param size the size of the indexed area
+     * @param ids the ids of the names
+     * @param bounds the left, top, right and bottom of every name
+     * @param count the number of names
+     */
+    ContributorsCloudIndex(float size, int[] ids, float[] bounds, int count) {
+        mCount = count;
+        mIds = ids;
+        mBounds = bounds;
+        mCellSize = size / GRID_SIZE;
+
+        // Count the entries of every cell, and then fill them
+        mCellStart = new int[GRID_SIZE * GRID_SIZE + 1];
+        for (int i = 0; i < count; i++) {
+            for (int cy = cell(bounds[i * 4 + 1]); cy <= cell(bounds[i * 4 + 3]); cy++) {
+                for (int cx = cell(bounds[i * 4]); cx <= cell(bounds[i * 4 + 2]); cx++) {
+                    mCellStart[cy * GRID_SIZE + cx + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < GRID_SIZE * GRID_SIZE; i++) {
+            mCellStart[i + 1] += mCellStart[i];
+        }
+        mCellEntries = new int[mCellStart[GRID_SIZE * GRID_SIZE]];
+        int[] next = Arrays.copyOf(mCellStart, GRID_SIZE * GRID_SIZE);
+        for (int i = 0; i < count; i++) {
+            for (int cy = cell(bounds[i * 4 + 1]); cy <= cell(bounds[i * 4 + 3]); cy++) {
+                for (int cx = cell(bounds[i * 4]); cx <= cell(bounds[i * 4 + 2]); cx++) {
+                    mCellEntries[next[cy * GRID_SIZE + cx]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of indexed names
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Find the name at the passed point of the cloud. If several names match, the one with
+     * the smaller bounds wins, because it's the one harder to hit.
+     *
+     * @param x the x coordinate, in cloud coordinates
+     * @param y the y coordinate, in cloud coordinates
+     * @param slop the distance (in cloud coordinates) a name can be from the point
+     * @return the id of the name, or -1 if there isn't a name at that point
+     */
+    int find(float x, float y, float slop) {
+        int result = -1;
+        float resultArea = Float.MAX_VALUE;
+        for (int cy = cell(y - slop); cy <= cell(y + slop); cy++) {
+            for (int cx = cell(x - slop); cx <= cell(x + slop); cx++) {
+                final int cellIndex = cy * GRID_SIZE + cx;
+                for (int j = mCellStart[cellIndex]; j < mCellStart[cellIndex + 1]; j++) {
+                    final int i = mCellEntries[j];
+                    final float left = mBounds[i * 4];
+                    final float top = mBounds[i * 4 + 1];
+                    final float right = mBounds[i * 4 + 2];
+                    final float bottom = mBounds[i * 4 + 3];
+                    if (x >= left - slop && x <= right + slop
+                            && y >= top - slop && y <= bottom + slop) {
+                        final float area = (right - left) * (bottom - top);
+                        if (area < resultArea) {
+                            result = mIds[i];
+                            resultArea = area;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private int cell(float v) {
+        return Math.max(0, Math.min(GRID_SIZE - 1, (int) (v / mCellSize)));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.contributors;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The contributors metadata, loaded once from the database into primitive arrays (one per
+ * column). Positions, font sizes and the bounds of every drawn name are already translated
+ * to cloud coordinates, so the cloud can be rendered without touching the database again.
+ * Rows are sorted by commits (descending).
+ */
+/* package */ class ContributorsCloudModel {
+
+    private static final String TAG = "ContributorsCloud";
+
+    private static ContributorsCloudModel sInstance;
+
+    final int mCount;
+    final int[] mIds;
+    final String[] mNames;
+    final String[] mUsernames;
+    final String[] mFilters;
+    final int[] mCommits;
+    final float[] mX;
+    final float[] mY;
+    final int[] mRotation;
+    final float[] mFontSize;
+    final float[] mWidth;
+    final float[] mHeight;
+    // left, top, right, bottom of every name
+    final float[] mBounds;
+
+    final long mDate;
+    final int mTotalContributors;
+    final int mTotalCommits;
+
+    // Ids sorted, and the row of every one of them
+    private final int[] mSortedIds;
+    private final int[] mSortedRows;
+
+    private ContributorsCloudModel(Cursor c, int osize, long date) {
+        final int count = c.getCount();
+        mCount = count;
+        mDate = date;
+        mIds = new int[count];
+        mNames = new String[count];
+        mUsernames = new String[count];
+        mFilters = new String[count];
+        mCommits = new int[count];
+        mX = new float[count];
+        mY = new float[count];
+        mRotation = new int[count];
+        mFontSize = new float[count];
+        mWidth = new float[count];
+        mHeight = new float[count];
+        mBounds = new float[count * 4];
+
+        final float scale = (float) ContributorsCloudRenderer.CLOUD_SIZE / osize;
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        final Rect textBounds = new Rect();
+        int totalContributors = 0;
+        int totalCommits = 0;
+        for (int i = 0; i < count && c.moveToNext(); i++) {
+            final int id = c.getInt(0);
+            final String name = c.getString(1).intern();
+            final String username = c.isNull(2) ? null : c.getString(2).intern();
+            final String filter = c.isNull(3) ? "" : c.getString(3);
+
+            mIds[i] = id;
+            mNames[i] = name;
+            mUsernames[i] = username;
+            mFilters[i] = filter.toLowerCase(Locale.ROOT);
+            mCommits[i] = c.getInt(4);
+            mX[i] = c.getFloat(5) * scale;
+            mY[i] = c.getFloat(6) * scale;
+            mRotation[i] = c.getInt(7);
+            mFontSize[i] = c.getFloat(8) * scale;
+            if (id < 0) {
+                mY[i] -= mFontSize[i] * scale;
+            } else {
+                totalContributors++;
+                totalCommits += mCommits[i];
+            }
+
+            // Measure the name as it will be drawn
+            paint.setTextSize(mFontSize[i]);
+            paint.getTextBounds(name, 0, name.length(), textBounds);
+            mWidth[i] = paint.measureText(name);
+            mHeight[i] = textBounds.height();
+            ContributorsCloudRenderer.computeBounds(mX[i], mY[i], mRotation[i],
+                    mWidth[i], mHeight[i], textBounds, mBounds, i * 4);
+        }
+        mTotalContributors = totalContributors;
+        mTotalCommits = totalCommits;
+
+        // Index the ids, packing every id with its row so both can be sorted at once
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            packed[i] = ((long) mIds[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+        mSortedIds = new int[count];
+        mSortedRows = new int[count];
+        for (int i = 0; i < count; i++) {
+            mSortedIds[i] = (int) (packed[i] >> 32);
+            mSortedRows[i] = (int) packed[i];
+        }
+    }
+
+    /**
+     * @return the model of the installed contributors database, loading it if needed, or
+     * null if the database can't be read
+     */
+    static synchronized ContributorsCloudModel get(Context context) {
+        if (sInstance == null) {
+            sInstance = load(context, true);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Like {@link #get(Context)}, but never extracts the database again if it can't be
+     * read. Only the cloud fragment loader extracts it, so an interrupted caller (like a
+     * search indexing worker) can't leave a half-copied database behind.
+     *
+     * @return the model of the installed contributors database, or null if the database
+     * can't be read
+     */
+    static synchronized ContributorsCloudModel getIfReadable(Context context) {
+        if (sInstance == null) {
+            sInstance = load(context, false);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drop the loaded model, so the next access reads the database again.
+     */
+    static synchronized void invalidate() {
+        sInstance = null;
+    }
+
+    /**
+     * @return the row of the passed contributor id, or -1 if it doesn't exist
+     */
+    int indexOf(int id) {
+        int i = Arrays.binarySearch(mSortedIds, id);
+        return i >= 0 ? mSortedRows[i] : -1;
+    }
+
+    /**
+     * @return the contributor name plus its username, as shown in the search results
+     */
+    String getLabel(int row) {
+        return mUsernames[row] == null
+                ? mNames[row] : mNames[row] + " <" + mUsernames[row] + ">";
+    }
+
+    private static ContributorsCloudModel load(Context context, boolean retryCopyIfOpenFails) {
+        File dbPath = context.getDatabasePath(ContributorsCloudFragment.DB_NAME);
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbPath.getAbsolutePath(),
+                    null, SQLiteDatabase.OPEN_READONLY);
+            if (db == null) {
+                Log.e(TAG, "Cannot open cloud database: " + dbPath + ". db == null");
+                return null;
+            }
+            return load(db);
+
+        } catch (SQLException ex) {
+            Log.e(TAG, "Cannot open cloud database: " + dbPath, ex);
+            if (db != null && db.isOpen()) {
+                try {
+                    db.close();
+                } catch (SQLException ex2) {
+                    // Ignore
+                }
+                db = null;
+            }
+
+            if (retryCopyIfOpenFails) {
+                ContributorsCloudFragment.extractContributorsCloudDatabase(context);
+                return load(context, false);
+            }
+        } finally {
+            if (db != null && db.isOpen()) {
+                db.close();
+            }
+        }
+
+        // We don't have a valid connection
+        return null;
+    }
+
+    private static ContributorsCloudModel load(SQLiteDatabase db) {
+        // Extract original image size and the date of the database
+        int osize = -1;
+        long date = -1;
+        Cursor c = db.rawQuery("select key, value from info;", null);
+        if (c == null) {
+            // We don't have a valid cursor reference
+            return null;
+        }
+        try {
+            while (c.moveToNext()) {
+                if ("orig_size".equals(c.getString(0))) {
+                    osize = c.getInt(1);
+                } else if ("date".equals(c.getString(0))) {
+                    date = c.getLong(1);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (osize <= 0) {
+            return null;
+        }
+
+        c = db.rawQuery("select id, name, username, filter, commits, x, y, r, fs " +
+                "from metadata order by commits desc;", null);
+        if (c == null) {
+            // We don't have a valid cursor reference
+            return null;
+        }
+        try {
+            return new ContributorsCloudModel(c, osize, date);
+        } finally {
+            c.close();
+        }
+    }
+}
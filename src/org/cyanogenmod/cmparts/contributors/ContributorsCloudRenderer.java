@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.contributors;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import org.cyanogenmod.cmparts.R;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Draws the contributors cloud in cloud coordinates. The cloud is always laid out in a
+ * {@link #CLOUD_SIZE} square, callers scale the canvas to the resolution they need, so the
+ * same code path is used for the low resolution preview and for every zoom tile.
+ * <p/>
+ * The cloud is drawn as a coverage mask (meant for {@link android.graphics.Bitmap.Config#ALPHA_8}
+ * bitmaps) without the selected contributor. Colors are applied when the mask is drawn, and
+ * the selected name is drawn on top of it with {@link #drawSelected}.
+ * <p/>
+ * Names are drawn depending on their size at the scale of the target bitmap: names too
+ * small to be legible are drawn as dots or skipped, so a zoomed out cloud doesn't pay for
+ * text nobody can read.
+ */
+/* package */ class ContributorsCloudRenderer {
+
+    // Logical size of the cloud. This is the intrinsic size of the cloud drawable
+    static final int CLOUD_SIZE = 2048;
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    // Names aren't evenly distributed, so use more bands than cores to balance the work
+    private static final int BANDS_PER_CORE = 4;
+
+    private static final ExecutorService sBandExecutor = Executors.newFixedThreadPool(CORES);
+
+    // Level of detail, by the size of the text once drawn (in pixels). Smaller names are
+    // drawn as a dot with the average coverage of their text, and the smallest are skipped
+    private static final float MIN_TEXT_SIZE = 4f;
+    private static final float MIN_DOT_SIZE = 0.5f;
+    private static final int DOT_ALPHA = 0x50;
+
+    private final ContributorsCloudModel mModel;
+    private final int mColorForeground;
+    private final int mColorSelected;
+
+    private volatile int mSelectedId = -1;
+
+    /**
+     * Polled between bands, so an obsolete render stops early without interrupting
+     * the rendering threads
+     */
+    interface Cancellable {
+        boolean isCancelled();
+    }
+
+    /**
+     * The geometry of a single contributor name, in cloud coordinates
+     */
+    static class Contributor {
+        int mId;
+        String mName;
+        float mX;
+        float mY;
+        int mRotation;
+        float mFontSize;
+        float mWidth;
+        float mHeight;
+        final RectF mBounds = new RectF();
+    }
+
+    ContributorsCloudRenderer(Context context, ContributorsCloudModel model) {
+        final Resources res = context.getResources();
+        mModel = model;
+        mColorForeground = res.getColor(R.color.contributors_cloud_fg_color);
+        mColorSelected = res.getColor(R.color.contributors_cloud_selected_color);
+    }
+
+    ContributorsCloudModel getModel() {
+        return mModel;
+    }
+
+    int getSelectedId() {
+        return mSelectedId;
+    }
+
+    void setSelectedId(int selectedId) {
+        mSelectedId = selectedId;
+    }
+
+    int getColorForeground() {
+        return mColorForeground;
+    }
+
+    int getColorSelected() {
+        return mColorSelected;
+    }
+
+    /**
+     * Draw the coverage mask of every contributor name that intersects the canvas clip,
+     * except the selected one. This method is safe to call from several threads at once,
+     * as long as every thread uses its own canvas.
+     *
+     * @param scale the pixels per cloud unit of the canvas, used to choose the level of
+     * detail of every name
+     */
+    void draw(Canvas canvas, float scale) {
+        final ContributorsCloudModel model = mModel;
+        final float[] bounds = model.mBounds;
+        final int selectedId = mSelectedId;
+        final Paint paint = createMaskPaint(0xff);
+        final Paint dotPaint = createMaskPaint(DOT_ALPHA);
+        for (int i = 0; i < model.mCount; i++) {
+            // Skip the selected name (drawn on top of the mask) and the names outside
+            // the clip (a zoom tile only needs a few of them)
+            if (model.mIds[i] == selectedId
+                    || canvas.quickReject(bounds[i * 4] - 1, bounds[i * 4 + 1] - 1,
+                            bounds[i * 4 + 2] + 1, bounds[i * 4 + 3] + 1, Canvas.EdgeType.AA)) {
+                continue;
+            }
+            drawMask(canvas, paint, dotPaint, i, scale);
+        }
+    }
+
+    /**
+     * Draw the mask of the whole cloud into the passed bitmap (scaled to its width). The
+     * bitmap is split in horizontal bands, every name is assigned to each band its bounds
+     * touch, and the bands are drawn concurrently. Every band only writes its own rows of
+     * the bitmap, so nothing needs to be composited afterwards.
+     *
+     * @throws CancellationException if the render was cancelled before every band was drawn
+     */
+    void drawBands(final Bitmap bitmap, final Cancellable cancellable)
+            throws InterruptedException {
+        final ContributorsCloudModel model = mModel;
+        final float[] bounds = model.mBounds;
+        final int selectedId = mSelectedId;
+        final float scale = (float) bitmap.getWidth() / CLOUD_SIZE;
+        final int height = bitmap.getHeight();
+        final int bandCount = Math.min(height, CORES * BANDS_PER_CORE);
+        final int bandHeight = (height + bandCount - 1) / bandCount;
+
+        // Count the names of every band, and then fill them. Entries of band b are
+        // entries[start[b]] .. entries[start[b + 1] - 1]
+        final int[] start = new int[bandCount + 1];
+        for (int i = 0; i < model.mCount; i++) {
+            if (model.mIds[i] == selectedId) {
+                continue;
+            }
+            // Include a pixel of margin for the antialiased edges of the text
+            for (int b = band(bounds[i * 4 + 1] * scale - 1, bandHeight, bandCount);
+                    b <= band(bounds[i * 4 + 3] * scale + 1, bandHeight, bandCount); b++) {
+                start[b + 1]++;
+            }
+        }
+        for (int b = 0; b < bandCount; b++) {
+            start[b + 1] += start[b];
+        }
+        final int[] entries = new int[start[bandCount]];
+        final int[] next = new int[bandCount];
+        System.arraycopy(start, 0, next, 0, bandCount);
+        for (int i = 0; i < model.mCount; i++) {
+            if (model.mIds[i] == selectedId) {
+                continue;
+            }
+            // Include a pixel of margin for the antialiased edges of the text
+            for (int b = band(bounds[i * 4 + 1] * scale - 1, bandHeight, bandCount);
+                    b <= band(bounds[i * 4 + 3] * scale + 1, bandHeight, bandCount); b++) {
+                entries[next[b]++] = i;
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(bandCount);
+        for (int b = 0; b < bandCount; b++) {
+            final int band = b;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (cancellable.isCancelled()) {
+                        return null;
+                    }
+                    Canvas canvas = new Canvas(bitmap);
+                    canvas.clipRect(0, band * bandHeight,
+                            bitmap.getWidth(), Math.min(height, (band + 1) * bandHeight));
+                    canvas.scale(scale, scale);
+                    final Paint paint = createMaskPaint(0xff);
+                    final Paint dotPaint = createMaskPaint(DOT_ALPHA);
+                    for (int j = start[band]; j < start[band + 1]; j++) {
+                        drawMask(canvas, paint, dotPaint, entries[j], scale);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Void> future : sBandExecutor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Failed to draw cloud band", ex.getCause());
+            }
+        }
+        if (cancellable.isCancelled()) {
+            // Some bands may have been skipped
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Build a spatial index over the bounds of every name of the cloud
+     */
+    ContributorsCloudIndex buildIndex() {
+        return new ContributorsCloudIndex(CLOUD_SIZE, mModel.mIds, mModel.mBounds, mModel.mCount);
+    }
+
+    /**
+     * Draw a single contributor name with the passed paint (which should have the selected
+     * color). This is used to draw the selection on top of the cloud mask.
+     */
+    void drawSelected(Canvas canvas, Paint paint, Contributor contributor) {
+        paint.setTextSize(contributor.mFontSize);
+        drawName(canvas, paint, contributor.mName, contributor.mX, contributor.mY,
+                contributor.mRotation, contributor.mWidth, contributor.mHeight);
+    }
+
+    /**
+     * Get the geometry of a contributor, including the bounds of its drawn name
+     *
+     * @return the contributor, or null if it doesn't exists
+     */
+    Contributor getContributor(int id) {
+        final ContributorsCloudModel model = mModel;
+        final int i = model.indexOf(id);
+        if (i == -1) {
+            return null;
+        }
+
+        Contributor contributor = new Contributor();
+        contributor.mId = id;
+        contributor.mName = model.mNames[i];
+        contributor.mX = model.mX[i];
+        contributor.mY = model.mY[i];
+        contributor.mRotation = model.mRotation[i];
+        contributor.mFontSize = model.mFontSize[i];
+        contributor.mWidth = model.mWidth[i];
+        contributor.mHeight = model.mHeight[i];
+        contributor.mBounds.set(model.mBounds[i * 4], model.mBounds[i * 4 + 1],
+                model.mBounds[i * 4 + 2], model.mBounds[i * 4 + 3]);
+        return contributor;
+    }
+
+    /**
+     * Calculate where the view should be focused to navigate to a contributor
+     */
+    static void computeFocus(Contributor contributor, int viewWidth, int viewHeight,
+            PointF focus) {
+        final float x = contributor.mX;
+        final float y = contributor.mY;
+        final float w = contributor.mWidth;
+        final float h = contributor.mHeight;
+
+        int cx = viewWidth / 2;
+        int cy = viewHeight / 2;
+        int cbx = CLOUD_SIZE / 2;
+        int cby = CLOUD_SIZE / 2;
+        int min = Math.min(viewWidth, viewHeight);
+        float cw = 0f;
+        float ch = 0f;
+        if (contributor.mRotation == 0) {
+            cw = translate(w, CLOUD_SIZE, min) / 2;
+            ch = translate(h, CLOUD_SIZE, min) / 2;
+        } else {
+            cw = translate(h, CLOUD_SIZE, min) / 2;
+            ch = translate(w, CLOUD_SIZE, min) / 2;
+        }
+
+        focus.x = cx + translate(x - cbx, CLOUD_SIZE, viewWidth) + cw;
+        focus.y = cy + translate(y - cby, CLOUD_SIZE, viewHeight) + ch;
+    }
+
+    private void drawMask(Canvas canvas, Paint paint, Paint dotPaint, int i, float scale) {
+        final ContributorsCloudModel model = mModel;
+        final float size = model.mFontSize[i] * scale;
+        if (size < MIN_DOT_SIZE) {
+            // Not even a pixel
+            return;
+        }
+        if (size < MIN_TEXT_SIZE) {
+            final float[] bounds = model.mBounds;
+            canvas.drawRect(bounds[i * 4], bounds[i * 4 + 1],
+                    bounds[i * 4 + 2], bounds[i * 4 + 3], dotPaint);
+            return;
+        }
+        paint.setTextSize(model.mFontSize[i]);
+        drawName(canvas, paint, model.mNames[i], model.mX[i], model.mY[i],
+                model.mRotation[i], model.mWidth[i], model.mHeight[i]);
+    }
+
+    private static Paint createMaskPaint(int alpha) {
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        // The real color is applied when the mask is drawn
+        paint.setColor(Color.BLACK);
+        paint.setAlpha(alpha);
+        return paint;
+    }
+
+    /**
+     * @return the band that contains the passed bitmap y coordinate
+     */
+    private static int band(float y, int bandHeight, int bandCount) {
+        return Math.max(0, Math.min(bandCount - 1, (int) Math.floor(y / bandHeight)));
+    }
+
+    private static void drawName(Canvas canvas, Paint paint, String name,
+            float x, float y, int r, float w, float h) {
+        if (r == 0) {
+            // Horizontal
+            canvas.drawText(name, x, y, paint);
+        } else {
+            if (r == -1) {
+                // Vertical (-90 rotation)
+                canvas.save();
+                canvas.translate(h, w - h);
+                canvas.rotate(-90, x, y);
+                canvas.drawText(name, x, y, paint);
+                canvas.restore();
+            } else {
+                // Vertical (+90 rotation)
+                canvas.save();
+                canvas.translate(h/2, -h);
+                canvas.rotate(90, x, y);
+                canvas.drawText(name, x, y, paint);
+                canvas.restore();
+            }
+        }
+    }
+
+    /**
+     * Map the text bounds of a name (relative to its origin) to the cloud, applying the same
+     * transformations used by {@link #drawName}. The bounds are stored as left, top, right
+     * and bottom at the passed offset.
+     */
+    static void computeBounds(float x, float y, int r, float w, float h,
+            Rect textBounds, float[] out, int offset) {
+        if (r == 0) {
+            out[offset] = x + textBounds.left;
+            out[offset + 1] = y + textBounds.top;
+            out[offset + 2] = x + textBounds.right;
+            out[offset + 3] = y + textBounds.bottom;
+        } else if (r == -1) {
+            out[offset] = x + h + textBounds.top;
+            out[offset + 1] = y + w - h - textBounds.right;
+            out[offset + 2] = x + h + textBounds.bottom;
+            out[offset + 3] = y + w - h - textBounds.left;
+        } else {
+            out[offset] = x + h / 2 - textBounds.bottom;
+            out[offset + 1] = y - h + textBounds.left;
+            out[offset + 2] = x + h / 2 - textBounds.top;
+            out[offset + 3] = y - h + textBounds.right;
+        }
+    }
+
+    private static float translate(float v, int ssize, int dsize) {
+        return (v * dsize) / ssize;
+    }
+}
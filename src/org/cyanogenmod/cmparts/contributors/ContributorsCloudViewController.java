@@ -24,6 +24,7 @@ import android.graphics.Matrix;
 import android.graphics.Matrix.ScaleToFit;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -226,8 +227,24 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     private final Matrix mDrawMatrix = new Matrix();
     private final Matrix mSuppMatrix = new Matrix();
     private final RectF mDisplayRect = new RectF();
+    private final RectF mTempSrc = new RectF();
+    private final RectF mTempDst = new RectF();
     private final float[] mMatrixValues = new float[9];
 
+    // The draw matrix and the display rect are kept up to date while dragging and scaling,
+    // and only recomputed from scratch when the matrices are replaced
+    private boolean mDrawMatrixValid;
+    private boolean mDisplayRectValid;
+
+    // Frame timing of the running fling or zoom animation, logged when it ends
+    private static final long SLOW_FRAME_NANOS = 2 * 16666667L;
+    private String mAnimation;
+    private long mLastFrameTime;
+    private int mFrameCount;
+    private int mSlowFrameCount;
+    private long mTotalFrameNanos;
+    private long mMaxFrameNanos;
+
     // Listeners
     private OnMatrixChangedListener mMatrixChangeListener;
     private OnPhotoTapListener mPhotoTapListener;
@@ -236,7 +253,8 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     private OnScaleChangeListener mScaleChangeListener;
 
     private int mIvTop, mIvRight, mIvBottom, mIvLeft;
-    private FlingRunnable mCurrentFlingRunnable;
+    private FlingRunnable mFlingRunnable;
+    private final AnimatedZoomRunnable mZoomRunnable = new AnimatedZoomRunnable();
     private int mScrollEdge = EDGE_BOTH;
 
     private boolean mZoomEnabled;
@@ -384,6 +402,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             return false;
 
         mSuppMatrix.set(finalMatrix);
+        invalidateDrawMatrix();
         setImageViewMatrix(getDrawMatrix());
         checkMatrixBounds();
 
@@ -392,11 +411,13 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
     public void setRotationTo(float degrees) {
         mSuppMatrix.setRotate(degrees % 360);
+        invalidateDrawMatrix();
         checkAndDisplayMatrix();
     }
 
     public void setRotationBy(float degrees) {
         mSuppMatrix.postRotate(degrees % 360);
+        invalidateDrawMatrix();
         checkAndDisplayMatrix();
     }
 
@@ -448,7 +469,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
 
         ImageView imageView = getImageView();
-        mSuppMatrix.postTranslate(dx, dy);
+        postTranslate(dx, dy);
         checkAndDisplayMatrix();
 
         /**
@@ -483,10 +504,14 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                     + velocityX + " Vy: " + velocityY);
         }
         ImageView imageView = getImageView();
-        mCurrentFlingRunnable = new FlingRunnable(imageView.getContext());
-        mCurrentFlingRunnable.fling(getImageViewWidth(imageView),
+        if (null == mFlingRunnable) {
+            mFlingRunnable = new FlingRunnable(imageView.getContext());
+        }
+        imageView.removeCallbacks(mFlingRunnable);
+        mFlingRunnable.fling(getImageViewWidth(imageView),
                 getImageViewHeight(imageView), (int) velocityX, (int) velocityY);
-        imageView.post(mCurrentFlingRunnable);
+        startAnimation("fling");
+        imageView.post(mFlingRunnable);
         mIgnoreDoubleTapScale = false;
     }
 
@@ -535,7 +560,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             if (null != mScaleChangeListener) {
                 mScaleChangeListener.onScaleChange(scaleFactor, focusX, focusY);
             }
-            mSuppMatrix.postScale(scaleFactor, scaleFactor, focusX, focusY);
+            postScale(scaleFactor, focusX, focusY);
             checkAndDisplayMatrix();
         }
     }
@@ -569,8 +594,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                     if (getScale() < mMinScale) {
                         RectF rect = getDisplayRect();
                         if (null != rect) {
-                            v.post(new AnimatedZoomRunnable(getScale(), mMinScale,
-                                    rect.centerX(), rect.centerY()));
+                            startZoom(v, getScale(), mMinScale, rect.centerX(), rect.centerY());
                             handled = true;
                         }
                     }
@@ -676,10 +700,10 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             }
 
             if (animate) {
-                imageView.post(new AnimatedZoomRunnable(getScale(), scale,
-                        focalX, focalY));
+                startZoom(imageView, getScale(), scale, focalX, focalY);
             } else {
                 mSuppMatrix.setScale(scale, scale, focalX, focalY);
+                invalidateDrawMatrix();
                 checkAndDisplayMatrix();
             }
 
@@ -722,23 +746,112 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
     }
 
-    public Matrix getDisplayMatrix() {
-        return new Matrix(getDrawMatrix());
+    /**
+     * Copy the current display matrix into the passed matrix
+     */
+    public void getDisplayMatrix(Matrix matrix) {
+        matrix.set(getDrawMatrix());
     }
 
     public Matrix getDrawMatrix() {
-        mDrawMatrix.set(mBaseMatrix);
-        mDrawMatrix.postConcat(mSuppMatrix);
+        if (!mDrawMatrixValid) {
+            mDrawMatrix.set(mBaseMatrix);
+            mDrawMatrix.postConcat(mSuppMatrix);
+            mDrawMatrixValid = true;
+        }
         return mDrawMatrix;
     }
 
+    /**
+     * Mark the draw matrix and the display rect as stale. Must be called every time the
+     * base or the supp matrices are changed by other means than {@link #postTranslate}
+     * and {@link #postScale}.
+     */
+    private void invalidateDrawMatrix() {
+        mDrawMatrixValid = false;
+        mDisplayRectValid = false;
+    }
+
+    /**
+     * Translate the supp matrix, updating the draw matrix and the display rect in place
+     */
+    private void postTranslate(float dx, float dy) {
+        mSuppMatrix.postTranslate(dx, dy);
+        if (mDrawMatrixValid) {
+            mDrawMatrix.postTranslate(dx, dy);
+        }
+        if (mDisplayRectValid) {
+            mDisplayRect.offset(dx, dy);
+        }
+    }
+
+    /**
+     * Scale the supp matrix, updating the draw matrix and the display rect in place
+     */
+    private void postScale(float scale, float focusX, float focusY) {
+        mSuppMatrix.postScale(scale, scale, focusX, focusY);
+        if (mDrawMatrixValid) {
+            mDrawMatrix.postScale(scale, scale, focusX, focusY);
+        }
+        if (mDisplayRectValid) {
+            mDisplayRect.set(focusX + (mDisplayRect.left - focusX) * scale,
+                    focusY + (mDisplayRect.top - focusY) * scale,
+                    focusX + (mDisplayRect.right - focusX) * scale,
+                    focusY + (mDisplayRect.bottom - focusY) * scale);
+        }
+    }
+
     private void cancelFling() {
-        if (null != mCurrentFlingRunnable) {
-            mCurrentFlingRunnable.cancelFling();
-            mCurrentFlingRunnable = null;
+        if (null != mFlingRunnable) {
+            mFlingRunnable.cancelFling();
         }
     }
 
+    private void startZoom(View view, float currentZoom, float targetZoom,
+            float focalX, float focalY) {
+        view.removeCallbacks(mZoomRunnable);
+        mZoomRunnable.start(currentZoom, targetZoom, focalX, focalY);
+        startAnimation("zoom");
+        view.post(mZoomRunnable);
+    }
+
+    private void recordFrame() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (mLastFrameTime != 0) {
+            final long elapsed = now - mLastFrameTime;
+            mFrameCount++;
+            mTotalFrameNanos += elapsed;
+            if (elapsed > mMaxFrameNanos) {
+                mMaxFrameNanos = elapsed;
+            }
+            if (elapsed > SLOW_FRAME_NANOS) {
+                mSlowFrameCount++;
+            }
+        }
+        mLastFrameTime = now;
+    }
+
+    private void startAnimation(String animation) {
+        endAnimation();
+        mAnimation = animation;
+    }
+
+    /**
+     * Log the frame timing of the animation that just ended, and start over for the next one
+     */
+    private void endAnimation() {
+        if (DEBUG && mFrameCount > 0) {
+            Log.d(LOG_TAG, String.format("%s: %d frames, %d slow, avg %.2fms, max %.2fms",
+                    mAnimation, mFrameCount, mSlowFrameCount,
+                    mTotalFrameNanos / mFrameCount / 1000000f, mMaxFrameNanos / 1000000f));
+        }
+        mLastFrameTime = 0;
+        mFrameCount = 0;
+        mSlowFrameCount = 0;
+        mTotalFrameNanos = 0;
+        mMaxFrameNanos = 0;
+    }
+
     /**
      * Helper method that simply checks the Matrix, and then displays the result
      */
@@ -821,7 +934,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
 
         // Finally actually translate the matrix
-        mSuppMatrix.postTranslate(deltaX, deltaY);
+        postTranslate(deltaX, deltaY);
         return true;
     }
 
@@ -837,9 +950,12 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         if (null != imageView) {
             Drawable d = imageView.getDrawable();
             if (null != d) {
-                mDisplayRect.set(0, 0, d.getIntrinsicWidth(),
-                        d.getIntrinsicHeight());
-                matrix.mapRect(mDisplayRect);
+                if (matrix != mDrawMatrix || !mDisplayRectValid) {
+                    mDisplayRect.set(0, 0, d.getIntrinsicWidth(),
+                            d.getIntrinsicHeight());
+                    matrix.mapRect(mDisplayRect);
+                    mDisplayRectValid = matrix == mDrawMatrix;
+                }
                 return mDisplayRect;
             }
         }
@@ -874,6 +990,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
      */
     private void resetMatrix() {
         mSuppMatrix.reset();
+        invalidateDrawMatrix();
         setImageViewMatrix(getDrawMatrix());
         checkMatrixBounds();
     }
@@ -933,8 +1050,8 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                     (viewHeight - drawableHeight * scale) / 2F);
 
         } else {
-            RectF mTempSrc = new RectF(0, 0, drawableWidth, drawableHeight);
-            RectF mTempDst = new RectF(0, 0, viewWidth, viewHeight);
+            mTempSrc.set(0, 0, drawableWidth, drawableHeight);
+            mTempDst.set(0, 0, viewWidth, viewHeight);
 
             switch (mScaleType) {
                 case FIT_CENTER:
@@ -1177,12 +1294,12 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
     private class AnimatedZoomRunnable implements Runnable {
 
-        private final float mFocalX, mFocalY;
-        private final long mStartTime;
-        private final float mZoomStart, mZoomEnd;
+        private float mFocalX, mFocalY;
+        private long mStartTime;
+        private float mZoomStart, mZoomEnd;
 
-        public AnimatedZoomRunnable(final float currentZoom, final float targetZoom,
-                                    final float focalX, final float focalY) {
+        public void start(final float currentZoom, final float targetZoom,
+                          final float focalX, final float focalY) {
             mFocalX = focalX;
             mFocalY = focalY;
             mStartTime = System.currentTimeMillis();
@@ -1197,6 +1314,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                 return;
             }
 
+            recordFrame();
             float t = interpolate();
             float scale = mZoomStart + t * (mZoomEnd - mZoomStart);
             float deltaScale = scale / getScale();
@@ -1206,6 +1324,8 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             // We haven't hit our target scale yet, so post ourselves again
             if (t < 1f) {
                 imageView.postOnAnimation(this);
+            } else {
+                endAnimation();
             }
         }
 
@@ -1230,6 +1350,9 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             if (DEBUG) {
                 Log.d(LOG_TAG, "Cancel Fling");
             }
+            if (!mScroller.isFinished()) {
+                endAnimation();
+            }
             mScroller.forceFinished(true);
         }
 
@@ -1281,6 +1404,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
             ImageView imageView = getImageView();
             if (null != imageView && mScroller.computeScrollOffset()) {
+                recordFrame();
 
                 final int newX = mScroller.getCurrX();
                 final int newY = mScroller.getCurrY();
@@ -1290,7 +1414,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                             + mCurrentY + " NewX:" + newX + " NewY:" + newY);
                 }
 
-                mSuppMatrix.postTranslate(mCurrentX - newX, mCurrentY - newY);
+                postTranslate(mCurrentX - newX, mCurrentY - newY);
                 setImageViewMatrix(getDrawMatrix());
 
                 mCurrentX = newX;
@@ -1298,6 +1422,8 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
                 // Post On animation
                 imageView.postOnAnimation(this);
+            } else {
+                endAnimation();
             }
         }
     }
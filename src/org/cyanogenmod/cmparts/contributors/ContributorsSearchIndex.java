@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.contributors;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An in-memory trigram index over the contributors filter column. Contributors are kept in
+ * commits order, so query results don't need to be sorted.
+ */
+/* package */ class ContributorsSearchIndex {
+
+    // Rows are packed in the low bits of every (trigram, row) pair
+    private static final int ROW_BITS = 16;
+    private static final int MAX_ROWS = 1 << ROW_BITS;
+
+    private final int[] mIds;
+    private final String[] mLabels;
+    private final String[] mFilters;
+
+    // Sorted unique trigrams, and the rows of every trigram
+    // (mRows[mStart[i]] .. mRows[mStart[i + 1] - 1])
+    private final long[] mTrigrams;
+    private final int[] mStart;
+    private final int[] mRows;
+
+    private ContributorsSearchIndex(int[] ids, String[] labels, String[] filters) {
+        mIds = ids;
+        mLabels = labels;
+        mFilters = filters;
+
+        final int count = ids.length;
+        if (count > MAX_ROWS) {
+            // Too many rows to be packed. Queries will scan all the filters
+            mTrigrams = new long[0];
+            mStart = new int[1];
+            mRows = new int[0];
+            return;
+        }
+
+        // Collect all the (trigram, row) pairs, sort them and group them by trigram
+        int pairCount = 0;
+        for (String filter : filters) {
+            pairCount += Math.max(0, filter.length() - 2);
+        }
+        long[] pairs = new long[pairCount];
+        int n = 0;
+        for (int row = 0; row < count; row++) {
+            final String filter = filters[row];
+            for (int i = 0; i + 3 <= filter.length(); i++) {
+                pairs[n++] = (trigram(filter, i) << ROW_BITS) | row;
+            }
+        }
+        Arrays.sort(pairs);
+
+        long[] trigrams = new long[pairCount];
+        int[] start = new int[pairCount + 1];
+        int[] rows = new int[pairCount];
+        int trigramCount = 0;
+        int rowCount = 0;
+        long last = 0;
+        for (int i = 0; i < pairCount; i++) {
+            if (i > 0 && pairs[i] == pairs[i - 1]) {
+                // Same trigram more than once in the same row
+                continue;
+            }
+            final long trigram = pairs[i] >> ROW_BITS;
+            if (trigramCount == 0 || trigram != last) {
+                trigrams[trigramCount] = trigram;
+                start[trigramCount] = rowCount;
+                trigramCount++;
+                last = trigram;
+            }
+            rows[rowCount++] = (int) (pairs[i] & (MAX_ROWS - 1));
+        }
+        start[trigramCount] = rowCount;
+
+        mTrigrams = Arrays.copyOf(trigrams, trigramCount);
+        mStart = Arrays.copyOf(start, trigramCount + 1);
+        mRows = Arrays.copyOf(rows, rowCount);
+    }
+
+    /**
+     * Build the index with the contributors of the passed model
+     */
+    static ContributorsSearchIndex build(ContributorsCloudModel model) {
+        int count = 0;
+        for (int i = 0; i < model.mCount; i++) {
+            if (model.mIds[i] > 0) {
+                count++;
+            }
+        }
+
+        // The model is already sorted by commits
+        int[] ids = new int[count];
+        String[] labels = new String[count];
+        String[] filters = new String[count];
+        int row = 0;
+        for (int i = 0; i < model.mCount; i++) {
+            if (model.mIds[i] > 0) {
+                ids[row] = model.mIds[i];
+                labels[row] = model.getLabel(i);
+                filters[row] = model.mFilters[i];
+                row++;
+            }
+        }
+        return new ContributorsSearchIndex(ids, labels, filters);
+    }
+
+    int getId(int row) {
+        return mIds[row];
+    }
+
+    String getLabel(int row) {
+        return mLabels[row];
+    }
+
+    /**
+     * @return the rows of the contributors whose filter contains the query, in commits order
+     */
+    int[] query(String query) {
+        final String q = query.replaceAll("\\|", "").toLowerCase(Locale.ROOT);
+        int[] results = new int[16];
+        int count = 0;
+
+        if (q.length() < 3 || mTrigrams.length == 0) {
+            // Not enough characters for a trigram. Just scan all the filters
+            for (int row = 0; row < mFilters.length; row++) {
+                if (mFilters[row].contains(q)) {
+                    results = append(results, count++, row);
+                }
+            }
+            return Arrays.copyOf(results, count);
+        }
+
+        // Every match must contain every trigram of the query, so only the rows of the
+        // less frequent trigram need to be checked
+        int best = -1;
+        for (int i = 0; i + 3 <= q.length(); i++) {
+            final long trigram = (trigram(q, i) << ROW_BITS) >> ROW_BITS;
+            final int index = Arrays.binarySearch(mTrigrams, trigram);
+            if (index < 0) {
+                // Nothing contains this trigram
+                return new int[0];
+            }
+            if (best == -1 || (mStart[index + 1] - mStart[index])
+                    < (mStart[best + 1] - mStart[best])) {
+                best = index;
+            }
+        }
+
+        // Rows were sorted with the pairs, so they are already in commits order
+        for (int i = mStart[best]; i < mStart[best + 1]; i++) {
+            final int row = mRows[i];
+            if (mFilters[row].contains(q)) {
+                results = append(results, count++, row);
+            }
+        }
+        return Arrays.copyOf(results, count);
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /**
+     * @return the 48 bits trigram at the passed position. Once packed with a row the trigram
+     * fills the sign bit, so stored trigrams are sign extended to keep the sort order.
+     */
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+}
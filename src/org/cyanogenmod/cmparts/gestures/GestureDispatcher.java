@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.gestures;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns gesture key events into actions: looks up the action of the scan code, drops
+ * gestures while another one is pending, checks them against the proximity sensor and
+ * records the latency of every stage. It only talks to {@link GestureServices} and the
+ * small interfaces below (and doesn't use the Android framework), so recorded events can
+ * be replayed through it off-device. {@link KeyHandler} backs the interfaces with the
+ * system services.
+ */
+/* package */ class GestureDispatcher implements GestureServices.Proximity.Listener {
+
+    // Messages of the scheduler
+    static final int GESTURE_REQUEST = 0;
+    static final int DISARM_PROXIMITY = 2;
+
+    // Action ids of scan codes without a mapping, and of mappings without an action
+    static final int ACTION_UNMAPPED = -1;
+    static final int ACTION_NONE = 0;
+
+    // How long the proximity sensor is kept listening after the screen turns off or a
+    // gesture starts, so the gesture can be checked against a reading already there
+    static final int PROXIMITY_ARM_WINDOW = 1500;
+
+    private static final int EVENT_PROCESS_WAKELOCK_DURATION = 500;
+
+    interface Settings {
+        boolean isSetupCompleted();
+        boolean isProximityCheckEnabled();
+        int getProximityTimeout();
+    }
+
+    /**
+     * The message queue of the thread gestures are performed on. The services must
+     * deliver proximity readings on the same thread.
+     */
+    interface Scheduler {
+        long uptimeMillis();
+        boolean sendMessageDelayed(int what, int arg1, int arg2, long delayMillis);
+        boolean hasMessages(int what);
+        void removeMessages(int what);
+    }
+
+    interface Launcher {
+        /**
+         * Perform the action of a gesture, on the scheduler thread
+         */
+        void performAction(int action, int scanCode);
+    }
+
+    /**
+     * Scan code to action id, and scan code to package of the ACTION_CUSTOM mappings,
+     * sorted by scan code. Replaced as a whole when the mapping changes, never modified.
+     */
+    static final class Mapping {
+        private final int[] mScanCodes;
+        private final int[] mActions;
+        private final String[] mPackages;
+
+        private Mapping(int[] scanCodes, int[] actions, String[] packages) {
+            mScanCodes = scanCodes;
+            mActions = actions;
+            mPackages = packages;
+        }
+
+        /**
+         * Compile the action strings of the settings into action ids, so the input path
+         * doesn't need to parse them. Actions which aren't a number are packages to launch.
+         */
+        static Mapping compile(int[] keycodes, String[] actions) {
+            final TreeMap<Integer, String> sorted = new TreeMap<>();
+            if (keycodes != null && actions != null && keycodes.length == actions.length) {
+                for (int i = 0; i < keycodes.length; i++) {
+                    if (actions[i] != null && !actions[i].isEmpty()) {
+                        sorted.put(keycodes[i], actions[i]);
+                    }
+                }
+            }
+
+            final int[] scanCodes = new int[sorted.size()];
+            final int[] actionIds = new int[sorted.size()];
+            final String[] packages = new String[sorted.size()];
+            int i = 0;
+            for (Map.Entry<Integer, String> entry : sorted.entrySet()) {
+                scanCodes[i] = entry.getKey();
+                try {
+                    actionIds[i] = Integer.parseInt(entry.getValue());
+                } catch (NumberFormatException e) {
+                    actionIds[i] = TouchscreenGestureConstants.ACTION_CUSTOM;
+                    packages[i] = entry.getValue();
+                }
+                i++;
+            }
+            return new Mapping(scanCodes, actionIds, packages);
+        }
+
+        int size() {
+            return mScanCodes.length;
+        }
+
+        int scanCodeAt(int index) {
+            return mScanCodes[index];
+        }
+
+        int actionAt(int index) {
+            return mActions[index];
+        }
+
+        /**
+         * @return the action id of the passed scan code, or ACTION_UNMAPPED
+         */
+        int getAction(int scanCode) {
+            final int index = Arrays.binarySearch(mScanCodes, scanCode);
+            return index >= 0 ? mActions[index] : ACTION_UNMAPPED;
+        }
+
+        /**
+         * @return the package launched by the passed scan code, or null if it isn't an
+         * ACTION_CUSTOM mapping
+         */
+        String getPackage(int scanCode) {
+            final int index = Arrays.binarySearch(mScanCodes, scanCode);
+            return index >= 0 ? mPackages[index] : null;
+        }
+    }
+
+    private final Settings mSettings;
+    private final Scheduler mScheduler;
+    private final GestureServices.Proximity mProximity;
+    private final GestureServices.WakeLock mGestureWakeLock;
+    private final GestureServices.WakeLock mProximityWakeLock;
+    private final GestureServices.WakeLock mArmWakeLock;
+    private final Launcher mLauncher;
+
+    private final GestureLatencyStats mLatencyStats = new GestureLatencyStats();
+
+    private volatile Mapping mMapping = Mapping.compile(null, null);
+
+    // All the fields below are guarded by this.
+
+    // Only one gesture is in flight at a time (see GESTURE_REQUEST), so its timestamps
+    // are kept in fields
+    private long mGestureEventTime;
+    private long mGestureHandleTime;
+
+    // The sensor is registered once per arming window rather than once per gesture, and
+    // while it's registered the last reading decides gestures right away. Otherwise the
+    // gesture waits for the first reading, or for the proximity timeout.
+    private boolean mProximityRegistered;
+    private long mProximityDisarmTime;
+    private boolean mHasProximityReading;
+    private boolean mProximityFar;
+    private int mPendingAction = ACTION_NONE;
+    private int mPendingScanCode;
+
+    private int mGestureCount;
+    private int mDispatchedCount;
+    private int mDroppedBusyCount;
+    private int mDroppedNearCount;
+    private int mProximityTimeoutCount;
+
+    GestureDispatcher(Settings settings, Scheduler scheduler, GestureServices services,
+            Launcher launcher) {
+        mSettings = settings;
+        mScheduler = scheduler;
+        mProximity = services.mProximity;
+        mGestureWakeLock = services.mPower.newWakeLock("CMPartsGestureWakeLock", true);
+        mProximityWakeLock = services.mPower.newWakeLock("CMPartsProximityWakeLock", false);
+        mArmWakeLock = services.mPower.newWakeLock("CMPartsProximityArmWakeLock", false);
+        mLauncher = launcher;
+    }
+
+    void setMapping(int[] keycodes, String[] actions) {
+        mMapping = Mapping.compile(keycodes, actions);
+    }
+
+    Mapping getMapping() {
+        return mMapping;
+    }
+
+    /**
+     * @param up whether this is the ACTION_UP of the gesture, which triggers its action
+     * @param eventTime the uptime of the input event
+     * @return whether the event was consumed
+     */
+    boolean onKeyEvent(int scanCode, boolean up, long eventTime) {
+        final int action = mMapping.getAction(scanCode);
+        if (action == ACTION_UNMAPPED || !mSettings.isSetupCompleted()) {
+            return false;
+        }
+        if (!up) {
+            if (action != ACTION_NONE && mSettings.isProximityCheckEnabled()) {
+                // Warm up the sensor while the gesture completes
+                armProximity(PROXIMITY_ARM_WINDOW);
+            }
+            return false;
+        }
+
+        if (action != ACTION_NONE) {
+            onGesture(action, scanCode, eventTime);
+        }
+        return true;
+    }
+
+    private synchronized void onGesture(int action, int scanCode, long eventTime) {
+        mGestureCount++;
+        if (mScheduler.hasMessages(GESTURE_REQUEST)) {
+            // Another gesture is waiting for the proximity sensor or to be performed
+            mDroppedBusyCount++;
+            return;
+        }
+
+        final long now = mScheduler.uptimeMillis();
+        mGestureEventTime = eventTime;
+        mGestureHandleTime = now;
+        mLatencyStats.record(action, GestureLatencyStats.STAGE_INPUT, now - eventTime);
+
+        if (mSettings.isProximityCheckEnabled()) {
+            mGestureWakeLock.acquire(2 * mSettings.getProximityTimeout());
+            checkProximity(action, scanCode);
+        } else {
+            mGestureWakeLock.acquire(EVENT_PROCESS_WAKELOCK_DURATION);
+            mScheduler.sendMessageDelayed(GESTURE_REQUEST, action, scanCode, 0);
+        }
+    }
+
+    /**
+     * Keep the proximity sensor listening while the screen turns off
+     */
+    void onScreenOff() {
+        if (mSettings.isProximityCheckEnabled()) {
+            armProximity(PROXIMITY_ARM_WINDOW);
+        }
+    }
+
+    /**
+     * Handle a message of the scheduler, on its thread
+     */
+    void handleMessage(int what, int arg1, int arg2) {
+        switch (what) {
+            case GESTURE_REQUEST:
+                performGesture(arg1, arg2);
+                break;
+            case DISARM_PROXIMITY:
+                disarmProximity();
+                break;
+        }
+    }
+
+    private void performGesture(int action, int scanCode) {
+        final long eventTime;
+        final long dispatchTime;
+        synchronized (this) {
+            if (mPendingAction != ACTION_NONE) {
+                // The sensor took too long
+                mProximityTimeoutCount++;
+                mPendingAction = ACTION_NONE;
+                mProximityWakeLock.release();
+            }
+            mDispatchedCount++;
+            eventTime = mGestureEventTime;
+            dispatchTime = mScheduler.uptimeMillis();
+            mLatencyStats.record(action, GestureLatencyStats.STAGE_DISPATCH,
+                    dispatchTime - mGestureHandleTime);
+        }
+
+        mLauncher.performAction(action, scanCode);
+
+        final long doneTime = mScheduler.uptimeMillis();
+        mLatencyStats.record(action, GestureLatencyStats.STAGE_ACTION, doneTime - dispatchTime);
+        mLatencyStats.record(action, GestureLatencyStats.STAGE_TOTAL, doneTime - eventTime);
+    }
+
+    /**
+     * Keep the sensor listening for at least the passed duration. A window armed earlier
+     * is never shortened. DISARM_PROXIMITY is scheduled on uptime, which stops while the
+     * device is suspended, so the window holds a wake lock until it's disarmed.
+     */
+    private synchronized void armProximity(long duration) {
+        if (!mProximityRegistered) {
+            mHasProximityReading = false;
+            mProximityDisarmTime = 0;
+            mProximityRegistered = mProximity.register(this);
+        }
+        final long disarmTime = mScheduler.uptimeMillis() + duration;
+        if (disarmTime > mProximityDisarmTime) {
+            mProximityDisarmTime = disarmTime;
+            mArmWakeLock.acquire(2 * duration);
+            mScheduler.removeMessages(DISARM_PROXIMITY);
+            mScheduler.sendMessageDelayed(DISARM_PROXIMITY, 0, 0, duration);
+        }
+    }
+
+    private synchronized void disarmProximity() {
+        if (mProximityRegistered) {
+            mProximity.unregister(this);
+            mProximityRegistered = false;
+            mHasProximityReading = false;
+        }
+        mArmWakeLock.release();
+    }
+
+    /**
+     * Dispatch the passed gesture if nothing is near the sensor
+     */
+    private void checkProximity(int action, int scanCode) {
+        final int timeout = mSettings.getProximityTimeout();
+        armProximity(timeout);
+        if (mHasProximityReading) {
+            mLatencyStats.record(action, GestureLatencyStats.STAGE_PROXIMITY, 0);
+            if (mProximityFar) {
+                mScheduler.sendMessageDelayed(GESTURE_REQUEST, action, scanCode, 0);
+            } else {
+                mDroppedNearCount++;
+            }
+            return;
+        }
+
+        // Wait for the first reading, or dispatch after the timeout
+        mPendingAction = action;
+        mPendingScanCode = scanCode;
+        mProximityWakeLock.acquire(2 * timeout);
+        mScheduler.sendMessageDelayed(GESTURE_REQUEST, action, scanCode, timeout);
+    }
+
+    @Override
+    public synchronized void onProximityChanged(boolean far) {
+        mHasProximityReading = true;
+        mProximityFar = far;
+        if (mPendingAction == ACTION_NONE) {
+            return;
+        }
+
+        mLatencyStats.record(mPendingAction, GestureLatencyStats.STAGE_PROXIMITY,
+                mScheduler.uptimeMillis() - mGestureHandleTime);
+        mProximityWakeLock.release();
+        mScheduler.removeMessages(GESTURE_REQUEST);
+        if (far) {
+            mScheduler.sendMessageDelayed(GESTURE_REQUEST, mPendingAction, mPendingScanCode, 0);
+        } else {
+            mDroppedNearCount++;
+        }
+        mPendingAction = ACTION_NONE;
+    }
+
+    /**
+     * @return the number of gestures of a mapped action
+     */
+    synchronized int getGestureCount() {
+        return mGestureCount;
+    }
+
+    synchronized int getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * @return the number of gestures dropped because another one was pending
+     */
+    synchronized int getDroppedBusyCount() {
+        return mDroppedBusyCount;
+    }
+
+    /**
+     * @return the number of gestures dropped because something was near the sensor
+     */
+    synchronized int getDroppedNearCount() {
+        return mDroppedNearCount;
+    }
+
+    /**
+     * @return the number of gestures dispatched without a proximity reading
+     */
+    synchronized int getProximityTimeoutCount() {
+        return mProximityTimeoutCount;
+    }
+
+    synchronized void resetStats() {
+        mGestureCount = 0;
+        mDispatchedCount = 0;
+        mDroppedBusyCount = 0;
+        mDroppedNearCount = 0;
+        mProximityTimeoutCount = 0;
+        mLatencyStats.reset();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Gestures: " + mGestureCount + " dispatched: " + mDispatchedCount
+                + " dropped (busy): " + mDroppedBusyCount
+                + " dropped (near): " + mDroppedNearCount
+                + " proximity timeouts: " + mProximityTimeoutCount);
+        mLatencyStats.dump(pw);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.gestures;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-bucket histograms of the gesture pipeline latency, per action and per stage.
+ * Recording doesn't allocate, so it can be done from the input path.
+ */
+/* package */ class GestureLatencyStats {
+
+    // Stages of the pipeline, timed from the previous one
+    static final int STAGE_INPUT = 0;      // input event -> handleKeyEvent
+    static final int STAGE_PROXIMITY = 1;  // handleKeyEvent -> proximity sensor answer
+    static final int STAGE_DISPATCH = 2;   // handleKeyEvent -> EventHandler
+    static final int STAGE_ACTION = 3;     // EventHandler -> activity started, torch toggled...
+    static final int STAGE_TOTAL = 4;      // input event -> action done
+    private static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "input", "proximity", "dispatch", "action", "total"
+    };
+
+    private static final String[] ACTION_NAMES = {
+            null, "flashlight", "camera", "browser", "dialer", "email", "messages",
+            "play_pause", "previous_track", "next_track", "custom"
+    };
+    private static final int ACTION_COUNT = ACTION_NAMES.length;
+
+    // Upper bounds (inclusive) of the buckets, in milliseconds. The last bucket holds
+    // everything above the last bound.
+    private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 3000
+    };
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS.length + 1;
+
+    // Counts of bucket b of stage s of action a are at (a * STAGE_COUNT + s) * BUCKET_COUNT + b
+    private final int[] mCounts = new int[ACTION_COUNT * STAGE_COUNT * BUCKET_COUNT];
+
+    /**
+     * Record the duration of a stage of a gesture
+     */
+    synchronized void record(int action, int stage, long durationMillis) {
+        if (action <= 0 || action >= ACTION_COUNT) {
+            return;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && durationMillis > BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mCounts[(action * STAGE_COUNT + stage) * BUCKET_COUNT + bucket]++;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+    }
+
+    /**
+     * Print the non empty histograms, one line per action and stage
+     */
+    synchronized void dump(PrintWriter pw) {
+        pw.print("Gesture latency (ms buckets:");
+        for (long bound : BUCKET_BOUNDS) {
+            pw.print(" <=" + bound);
+        }
+        pw.println(" >" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + ")");
+
+        for (int action = 1; action < ACTION_COUNT; action++) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                final int offset = (action * STAGE_COUNT + stage) * BUCKET_COUNT;
+                int total = 0;
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    total += mCounts[offset + bucket];
+                }
+                if (total == 0) {
+                    continue;
+                }
+                pw.print("  " + ACTION_NAMES[action] + " " + STAGE_NAMES[stage]
+                        + " n=" + total + ":");
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    pw.print(" " + mCounts[offset + bucket]);
+                }
+                pw.println();
+            }
+        }
+    }
+}
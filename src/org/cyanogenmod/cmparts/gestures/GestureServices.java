@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.gestures;
+
+/**
+ * The system services used by the gestures, behind small interfaces which don't use the
+ * Android framework, so the gesture dispatch can be driven off-device with fake services.
+ * {@link SystemGestureServices} backs them with the real ones.
+ */
+/* package */ final class GestureServices {
+
+    interface WakeLock {
+        void acquire(long timeout);
+        void release();
+    }
+
+    interface Power {
+        /**
+         * @return a partial wake lock
+         */
+        WakeLock newWakeLock(String tag, boolean referenceCounted);
+        void wakeUp(long time, String reason);
+    }
+
+    interface Torch {
+        interface Callback {
+            void onTorchModeChanged(String cameraId, boolean enabled);
+        }
+
+        /**
+         * Register a callback, called on the thread the services were created on
+         */
+        void registerCallback(Callback callback);
+
+        /**
+         * @return the id of the back facing camera, or null if there isn't one
+         */
+        String getRearCameraId();
+
+        /**
+         * @return whether the torch mode could be changed
+         */
+        boolean setTorchMode(String cameraId, boolean enabled);
+    }
+
+    interface Proximity {
+        interface Listener {
+            void onProximityChanged(boolean far);
+        }
+
+        boolean isAvailable();
+
+        /**
+         * Start delivering readings to the listener, on the thread the services were
+         * created on. There is one listener at a time, registering another one replaces it.
+         *
+         * @return whether the sensor could be registered
+         */
+        boolean register(Listener listener);
+        void unregister(Listener listener);
+    }
+
+    interface Haptics {
+        boolean hasVibrator();
+        void vibrate(long millis);
+    }
+
+    interface MediaKeys {
+        /**
+         * Send a press and a release of the passed media key code to the media sessions
+         *
+         * @return whether the key could be sent
+         */
+        boolean dispatchMediaKey(int keyCode);
+    }
+
+    final Power mPower;
+    final Torch mTorch;
+    final Proximity mProximity;
+    final Haptics mHaptics;
+    final MediaKeys mMediaKeys;
+
+    GestureServices(Power power, Torch torch, Proximity proximity, Haptics haptics,
+            MediaKeys mediaKeys) {
+        mPower = power;
+        mTorch = torch;
+        mProximity = proximity;
+        mHaptics = haptics;
+        mMediaKeys = mediaKeys;
+    }
+}
@@ -21,31 +21,21 @@ import android.app.KeyguardManager;
 import android.app.KeyguardManager.KeyguardLock;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.database.ContentObserver;
 import android.Manifest;
 import android.media.AudioManager;
-import android.media.session.MediaSessionLegacyHelper;
 import android.net.Uri;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
 import android.os.UserHandle;
-import android.os.Vibrator;
 import android.provider.Settings;
 import android.util.Log;
 import android.util.SparseArray;
@@ -55,30 +45,49 @@ import com.android.internal.os.DeviceKeyHandler;
 
 import cyanogenmod.providers.CMSettings;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KeyHandler implements DeviceKeyHandler {
 
     private static final String TAG = KeyHandler.class.getSimpleName();
 
     private static final String GESTURE_WAKEUP_REASON = "cmparts-gesture-wakeup";
-    private static final String GESTURE_ACTION_KEY = "touchscreen_gesture_action_key";
-    private static final int GESTURE_REQUEST = 0;
+    private static final int RESOLVE_LAUNCH_INTENTS = 1;
+
+    private static final String SMS_DEFAULT_APPLICATION = "sms_default_application";
+
     private static final int GESTURE_WAKELOCK_DURATION = 3000;
-    private static final int EVENT_PROCESS_WAKELOCK_DURATION = 500;
 
     private final Context mContext;
-    private final PowerManager mPowerManager;
-    private final WakeLock mGestureWakeLock;
+    private final GestureServices.Power mPower;
+    private final GestureServices.WakeLock mGestureWakeLock;
     private final EventHandler mEventHandler;
-    private final CameraManager mCameraManager;
-    private final Vibrator mVibrator;
+    private final GestureDispatcher mDispatcher;
+    private final GestureServices.Torch mTorch;
+    private final GestureServices.Haptics mHaptics;
+    private final GestureServices.MediaKeys mMediaKeys;
+    private final AudioManager mAudioManager;
+
+    // Settings read by every gesture, kept up to date by mSettingsObserver and
+    // mUpdateReceiver so the input path doesn't need to query them
+    private final SettingsObserver mSettingsObserver;
+    private volatile boolean mSetupCompleted;
+    private volatile boolean mProximityWakeEnabled;
+    private volatile boolean mHapticFeedbackEnabled;
+    private volatile int mRingerMode;
+
+    // Launch intents of the mapped scan codes, resolved ahead of the gestures. Only
+    // accessed from mEventHandler, and valid while mLaunchIntentsVersion doesn't change.
+    private final SparseArray<Intent> mLaunchIntents = new SparseArray<>();
+    private final AtomicInteger mLaunchIntentsVersion = new AtomicInteger();
+    private int mResolvedLaunchIntentsVersion = -1;
 
-    private final SparseArray mActionMapping = new SparseArray();
     private final boolean mProximityWakeSupported;
-    private SensorManager mSensorManager;
-    private Sensor mProximitySensor;
-    private WakeLock mProximityWakeLock;
+    private final GestureServices.Proximity mProximity;
+    private boolean mHasProximitySensor;
     private boolean mDefaultProximity;
     private int mProximityTimeOut;
 
@@ -90,6 +99,34 @@ public class KeyHandler implements DeviceKeyHandler {
     private String mRearCameraId;
     private boolean mTorchEnabled;
 
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // A target was installed, removed or changed, or a default app changed
+            invalidateLaunchIntents();
+        }
+    };
+
+    private final BroadcastReceiver mDumpReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final StringWriter sw = new StringWriter();
+            final PrintWriter pw = new PrintWriter(sw);
+            mDispatcher.dump(pw);
+            pw.flush();
+            for (String line : sw.toString().split("\n")) {
+                Log.i(TAG, line);
+            }
+            if (isOrderedBroadcast()) {
+                setResultData(sw.toString());
+            }
+            if (intent.getBooleanExtra(TouchscreenGestureConstants.DUMP_LATENCY_EXTRA_RESET,
+                    false)) {
+                mDispatcher.resetStats();
+            }
+        }
+    };
+
     private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -98,12 +135,12 @@ public class KeyHandler implements DeviceKeyHandler {
                         TouchscreenGestureConstants.UPDATE_EXTRA_KEYCODE_MAPPING);
                 String[] actions = intent.getStringArrayExtra(
                         TouchscreenGestureConstants.UPDATE_EXTRA_ACTION_MAPPING);
-                mActionMapping.clear();
-                if (keycodes != null && actions != null && keycodes.length == actions.length) {
-                    for (int i = 0; i < keycodes.length; i++) {
-                        mActionMapping.put(keycodes[i], actions[i]);
-                    }
-                }
+                mDispatcher.setMapping(keycodes, actions);
+                invalidateLaunchIntents();
+            }
+            else if (intent.getAction().equals(AudioManager.RINGER_MODE_CHANGED_ACTION)) {
+                mRingerMode = intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE,
+                        AudioManager.RINGER_MODE_NORMAL);
             }
             else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
                 Log.d(TAG, "Screen turned on");
@@ -120,6 +157,7 @@ public class KeyHandler implements DeviceKeyHandler {
             }
             else if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
                 Log.d(TAG, "Screen turned off");
+                mDispatcher.onScreenOff();
                 disableKGbyScreenOn = false;
                 if(isKGDismissed) {
                     ensureKeyguardManager();
@@ -134,18 +172,25 @@ public class KeyHandler implements DeviceKeyHandler {
     };
 
     public KeyHandler(final Context context) {
+        this(context, SystemGestureServices.create(context));
+    }
+
+    /* package */ KeyHandler(final Context context, final GestureServices services) {
         mContext = context;
 
-        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        mGestureWakeLock = mPowerManager.newWakeLock(
-                PowerManager.PARTIAL_WAKE_LOCK, "CMPartsGestureWakeLock");
+        mPower = services.mPower;
+        mGestureWakeLock = mPower.newWakeLock("CMPartsGestureWakeLock", true);
 
         mEventHandler = new EventHandler();
 
-        mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        mCameraManager.registerTorchCallback(new TorchModeCallback(), mEventHandler);
+        mTorch = services.mTorch;
+        mTorch.registerCallback(new TorchModeCallback());
 
-        mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        mHaptics = services.mHaptics;
+        mMediaKeys = services.mMediaKeys;
+        mProximity = services.mProximity;
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mRingerMode = mAudioManager.getRingerMode();
 
         final Resources resources = mContext.getResources();
         mProximityWakeSupported = resources.getBoolean(
@@ -157,28 +202,92 @@ public class KeyHandler implements DeviceKeyHandler {
             mDefaultProximity = mContext.getResources().getBoolean(
                     org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
 
-            mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-            mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-            mProximityWakeLock = mPowerManager.newWakeLock(
-                    PowerManager.PARTIAL_WAKE_LOCK, "CMPartsProximityWakeLock");
+            mHasProximitySensor = mProximity.isAvailable();
         }
+
+        mSettingsObserver = new SettingsObserver(mEventHandler);
+        mDispatcher = new GestureDispatcher(mSettingsObserver, mEventHandler, services,
+                new ActionLauncher());
+
         IntentFilter filter = new IntentFilter(TouchscreenGestureConstants.UPDATE_PREFS_ACTION);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(AudioManager.RINGER_MODE_CHANGED_ACTION);
         mContext.registerReceiver(mUpdateReceiver, filter);
+
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, packageFilter);
+        mContext.registerReceiver(mPackageReceiver,
+                new IntentFilter(Intent.ACTION_PREFERRED_ACTIVITY_CHANGED));
+
+        mContext.registerReceiver(mDumpReceiver,
+                new IntentFilter(TouchscreenGestureConstants.DUMP_LATENCY_ACTION),
+                Manifest.permission.DUMP, mEventHandler);
+
+        mSettingsObserver.register();
     }
 
-    private class TorchModeCallback extends CameraManager.TorchCallback {
+    private class SettingsObserver extends ContentObserver implements GestureDispatcher.Settings {
+        SettingsObserver(Handler handler) {
+            super(handler);
+        }
+
+        void register() {
+            final ContentResolver resolver = mContext.getContentResolver();
+            resolver.registerContentObserver(Settings.Secure.getUriFor(
+                    Settings.Secure.USER_SETUP_COMPLETE), false, this);
+            resolver.registerContentObserver(CMSettings.System.getUriFor(
+                    CMSettings.System.PROXIMITY_ON_WAKE), false, this);
+            resolver.registerContentObserver(CMSettings.System.getUriFor(
+                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK), false, this);
+            resolver.registerContentObserver(Settings.Secure.getUriFor(
+                    SMS_DEFAULT_APPLICATION), false, this);
+            update();
+        }
+
         @Override
-        public void onTorchModeChanged(String cameraId, boolean enabled) {
-            if (!cameraId.equals(mRearCameraId)) return;
-            mTorchEnabled = enabled;
+        public void onChange(boolean selfChange, Uri uri) {
+            if (Settings.Secure.getUriFor(SMS_DEFAULT_APPLICATION).equals(uri)) {
+                invalidateLaunchIntents();
+            } else {
+                update();
+            }
+        }
+
+        private void update() {
+            final ContentResolver resolver = mContext.getContentResolver();
+            mSetupCompleted = Settings.Secure.getInt(resolver,
+                    Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+            mProximityWakeEnabled = CMSettings.System.getInt(resolver,
+                    CMSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
+            mHapticFeedbackEnabled = CMSettings.System.getInt(resolver,
+                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
         }
 
         @Override
-        public void onTorchModeUnavailable(String cameraId) {
+        public boolean isSetupCompleted() {
+            return mSetupCompleted;
+        }
+
+        @Override
+        public boolean isProximityCheckEnabled() {
+            return mProximityWakeSupported && mProximityWakeEnabled && mHasProximitySensor;
+        }
+
+        @Override
+        public int getProximityTimeout() {
+            return mProximityTimeOut;
+        }
+    }
+
+    private class TorchModeCallback implements GestureServices.Torch.Callback {
+        @Override
+        public void onTorchModeChanged(String cameraId, boolean enabled) {
             if (!cameraId.equals(mRearCameraId)) return;
-            mTorchEnabled = false;
+            mTorchEnabled = enabled;
         }
     }
 
@@ -192,82 +301,97 @@ public class KeyHandler implements DeviceKeyHandler {
         }
     }
 
-    public boolean handleKeyEvent(final KeyEvent event) {
-        final String action = mActionMapping.get(event.getScanCode(), "").toString();
-        if (action.equals("") || event.getAction() != KeyEvent.ACTION_UP || !hasSetupCompleted()) {
-            return false;
-        }
+    /**
+     * Drop the resolved launch intents, and resolve them again in the background
+     */
+    private void invalidateLaunchIntents() {
+        mLaunchIntentsVersion.incrementAndGet();
+        mEventHandler.removeMessages(RESOLVE_LAUNCH_INTENTS);
+        mEventHandler.sendEmptyMessage(RESOLVE_LAUNCH_INTENTS);
+    }
 
-        if (!action.equals("0") && !mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            final Message msg = getMessageForAction(action);
-            final boolean proxWakeEnabled = CMSettings.System.getInt(mContext.getContentResolver(),
-                    CMSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
-            if (mProximityWakeSupported && proxWakeEnabled && mProximitySensor != null) {
-                mGestureWakeLock.acquire(2 * mProximityTimeOut);
-                mEventHandler.sendMessageDelayed(msg, mProximityTimeOut);
-                processEvent(action);
-            } else {
-                mGestureWakeLock.acquire(EVENT_PROCESS_WAKELOCK_DURATION);
-                mEventHandler.sendMessage(msg);
+    private void resolveLaunchIntents() {
+        final int version = mLaunchIntentsVersion.get();
+        final GestureDispatcher.Mapping mapping = mDispatcher.getMapping();
+        mLaunchIntents.clear();
+        for (int i = 0; i < mapping.size(); i++) {
+            final int scanCode = mapping.scanCodeAt(i);
+            final Intent intent = resolveLaunchIntent(mapping.actionAt(i), scanCode);
+            if (intent != null) {
+                mLaunchIntents.put(scanCode, intent);
             }
         }
+        mResolvedLaunchIntentsVersion = version;
+    }
 
-        return true;
+    private Intent resolveLaunchIntent(final int action, final int scanCode) {
+        final PackageManager pm = mContext.getPackageManager();
+        switch (action) {
+            case TouchscreenGestureConstants.ACTION_BROWSER:
+                return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
+            case TouchscreenGestureConstants.ACTION_EMAIL:
+                return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
+            case TouchscreenGestureConstants.ACTION_MESSAGES:
+                final String defaultApplication = Settings.Secure.getString(
+                        mContext.getContentResolver(), SMS_DEFAULT_APPLICATION);
+                return defaultApplication != null
+                        ? pm.getLaunchIntentForPackage(defaultApplication) : null;
+            case TouchscreenGestureConstants.ACTION_CUSTOM:
+                final String packageName = mDispatcher.getMapping().getPackage(scanCode);
+                final Intent intent = packageName != null
+                        ? pm.getLaunchIntentForPackage(packageName) : null;
+                return intent != null ? getLaunchableIntent(intent) : null;
+        }
+        return null;
     }
 
-    private boolean hasSetupCompleted() {
-        return Settings.Secure.getInt(mContext.getContentResolver(),
-                Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+    /**
+     * @return a copy of the launch intent of the passed scan code, resolving the intents
+     * first if they changed since they were last resolved
+     */
+    private Intent getLaunchIntent(final int scanCode) {
+        if (mResolvedLaunchIntentsVersion != mLaunchIntentsVersion.get()) {
+            resolveLaunchIntents();
+        }
+        final Intent intent = mLaunchIntents.get(scanCode);
+        return intent != null ? new Intent(intent) : null;
     }
 
-    private void processEvent(final String action) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took too long; ignoring
-                    return;
-                }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForAction(action);
-                    mEventHandler.sendMessage(msg);
-                }
-            }
+    public boolean handleKeyEvent(final KeyEvent event) {
+        return mDispatcher.onKeyEvent(event.getScanCode(),
+                event.getAction() == KeyEvent.ACTION_UP, event.getEventTime());
+    }
 
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {
-                // Ignore
+    private class EventHandler extends Handler implements GestureDispatcher.Scheduler {
+        @Override
+        public void handleMessage(final Message msg) {
+            if (msg.what == RESOLVE_LAUNCH_INTENTS) {
+                resolveLaunchIntents();
+            } else {
+                mDispatcher.handleMessage(msg.what, msg.arg1, msg.arg2);
             }
+        }
 
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
-    }
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
 
-    private Message getMessageForAction(final String action) {
-        Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
-        Bundle b = new Bundle();
-        b.putString(GESTURE_ACTION_KEY, action);
-        msg.setData(b);
-        return msg;
+        @Override
+        public boolean sendMessageDelayed(int what, int arg1, int arg2, long delayMillis) {
+            return sendMessageDelayed(obtainMessage(what, arg1, arg2), delayMillis);
+        }
     }
 
-    private class EventHandler extends Handler {
+    /**
+     * Performs the actions of the gestures dispatched by mDispatcher, on mEventHandler
+     */
+    private class ActionLauncher implements GestureDispatcher.Launcher {
         @Override
-        public void handleMessage(final Message msg) {
-            Bundle b = msg.getData();
-            final String action = b.getString(GESTURE_ACTION_KEY);
-            int actionInt = 0;
-            try {
-                actionInt = Integer.parseInt(String.valueOf(action));
-            } catch (NumberFormatException e){
-                actionInt = 0;
-            }
-            switch (actionInt) {
-                case 0:
-                    tryLaunchCustom(action);
+        public void performAction(int action, int scanCode) {
+            switch (action) {
+                case TouchscreenGestureConstants.ACTION_CUSTOM:
+                    tryLaunchCustom(scanCode);
                     break;
                 case TouchscreenGestureConstants.ACTION_CAMERA:
                     launchCamera();
@@ -276,16 +400,16 @@ public class KeyHandler implements DeviceKeyHandler {
                     toggleFlashlight();
                     break;
                 case TouchscreenGestureConstants.ACTION_BROWSER:
-                    launchBrowser();
+                    launchBrowser(scanCode);
                     break;
                 case TouchscreenGestureConstants.ACTION_DIALER:
                     launchDialer();
                     break;
                 case TouchscreenGestureConstants.ACTION_EMAIL:
-                    launchEmail();
+                    launchEmail(scanCode);
                     break;
                 case TouchscreenGestureConstants.ACTION_MESSAGES:
-                    launchMessages();
+                    launchMessages(scanCode);
                     break;
                 case TouchscreenGestureConstants.ACTION_PLAY_PAUSE_MUSIC:
                     playPauseMusic();
@@ -308,14 +432,12 @@ public class KeyHandler implements DeviceKeyHandler {
         doHapticFeedback();
     }
 
-    private void launchBrowser() {
+    private void launchBrowser(final int scanCode) {
         Log.d(TAG, "Disable kg = true");
         disableKGbyScreenOn = true;
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
-        startActivitySafely(intent);
+        mPower.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
+        startActivitySafely(getLaunchIntent(scanCode));
         doHapticFeedback();
     }
 
@@ -323,32 +445,27 @@ public class KeyHandler implements DeviceKeyHandler {
         Log.d(TAG, "Disable kg = true");
         disableKGbyScreenOn = true;
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
+        mPower.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
         final Intent intent = new Intent(Intent.ACTION_DIAL, null);
         startActivitySafely(intent);
         doHapticFeedback();
     }
 
-    private void launchEmail() {
+    private void launchEmail(final int scanCode) {
         Log.d(TAG, "Disable kg = true");
         disableKGbyScreenOn = true;
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
-        startActivitySafely(intent);
+        mPower.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
+        startActivitySafely(getLaunchIntent(scanCode));
         doHapticFeedback();
     }
 
-    private void launchMessages() {
+    private void launchMessages(final int scanCode) {
         Log.d(TAG, "Disable kg = true");
         disableKGbyScreenOn = true;
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final String defaultApplication = Settings.Secure.getString(
-                mContext.getContentResolver(), "sms_default_application");
-        final PackageManager pm = mContext.getPackageManager();
-        final Intent intent = pm.getLaunchIntentForPackage(defaultApplication);
+        mPower.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
+        final Intent intent = getLaunchIntent(scanCode);
         if (intent != null) {
             startActivitySafely(intent);
         }
@@ -359,24 +476,19 @@ public class KeyHandler implements DeviceKeyHandler {
         String rearCameraId = getRearCameraId();
         if (rearCameraId != null) {
             mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-            try {
-                mCameraManager.setTorchMode(rearCameraId, !mTorchEnabled);
+            if (mTorch.setTorchMode(rearCameraId, !mTorchEnabled)) {
                 mTorchEnabled = !mTorchEnabled;
-            } catch (CameraAccessException e) {
-                // Ignore
             }
             doHapticFeedback();
         }
     }
 
-    private void tryLaunchCustom(String packagename) {
+    private void tryLaunchCustom(final int scanCode) {
         Log.d(TAG, "Disable kg = true");
         disableKGbyScreenOn = true;
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(mContext.getPackageManager()
-                .getLaunchIntentForPackage(packagename));
-        startActivitySafely(intent);
+        mPower.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
+        startActivitySafely(getLaunchIntent(scanCode));
         doHapticFeedback();
     }
 
@@ -396,16 +508,9 @@ public class KeyHandler implements DeviceKeyHandler {
     }
 
     private void dispatchMediaKeyWithWakeLockToMediaSession(final int keycode) {
-        final MediaSessionLegacyHelper helper = MediaSessionLegacyHelper.getHelper(mContext);
-        if (helper == null) {
+        if (!mMediaKeys.dispatchMediaKey(keycode)) {
             Log.w(TAG, "Unable to send media key event");
-            return;
         }
-        KeyEvent event = new KeyEvent(SystemClock.uptimeMillis(),
-                SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN, keycode, 0);
-        helper.sendMediaButtonEvent(event, true);
-        event = KeyEvent.changeAction(event, KeyEvent.ACTION_UP);
-        helper.sendMediaButtonEvent(event, true);
     }
 
     private void startActivitySafely(final Intent intent) {
@@ -425,36 +530,18 @@ public class KeyHandler implements DeviceKeyHandler {
     }
 
     private void doHapticFeedback() {
-        if (mVibrator == null || !mVibrator.hasVibrator()) {
+        if (!mHaptics.hasVibrator()) {
             return;
         }
 
-        final AudioManager audioManager = (AudioManager) mContext.getSystemService(
-                Context.AUDIO_SERVICE);
-        if (audioManager.getRingerMode() != AudioManager.RINGER_MODE_SILENT) {
-            final boolean enabled = CMSettings.System.getInt(mContext.getContentResolver(),
-                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-            if (enabled) {
-                mVibrator.vibrate(50);
-            }
+        if (mRingerMode != AudioManager.RINGER_MODE_SILENT && mHapticFeedbackEnabled) {
+            mHaptics.vibrate(50);
         }
     }
 
     private String getRearCameraId() {
         if (mRearCameraId == null) {
-            try {
-                for (final String cameraId : mCameraManager.getCameraIdList()) {
-                    final CameraCharacteristics characteristics =
-                            mCameraManager.getCameraCharacteristics(cameraId);
-                    final int orientation = characteristics.get(CameraCharacteristics.LENS_FACING);
-                    if (orientation == CameraCharacteristics.LENS_FACING_BACK) {
-                        mRearCameraId = cameraId;
-                        break;
-                    }
-                }
-            } catch (CameraAccessException e) {
-                // Ignore
-            }
+            mRearCameraId = mTorch.getRearCameraId();
         }
         return mRearCameraId;
     }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.gestures;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.media.session.MediaSessionLegacyHelper;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Vibrator;
+import android.view.KeyEvent;
+
+import org.cyanogenmod.cmparts.gestures.GestureServices.Haptics;
+import org.cyanogenmod.cmparts.gestures.GestureServices.MediaKeys;
+import org.cyanogenmod.cmparts.gestures.GestureServices.Power;
+import org.cyanogenmod.cmparts.gestures.GestureServices.Proximity;
+import org.cyanogenmod.cmparts.gestures.GestureServices.Torch;
+import org.cyanogenmod.cmparts.gestures.GestureServices.WakeLock;
+
+/**
+ * {@link GestureServices} backed by the system services
+ */
+/* package */ final class SystemGestureServices {
+
+    private SystemGestureServices() {
+    }
+
+    /**
+     * @return the services backed by the system services of the passed context. Callbacks
+     * are delivered on the looper of the calling thread.
+     */
+    static GestureServices create(final Context context) {
+        final Handler handler = new Handler();
+        return new GestureServices(createPower(context), createTorch(context, handler),
+                createProximity(context, handler), createHaptics(context),
+                createMediaKeys(context));
+    }
+
+    private static Power createPower(Context context) {
+        final PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return new Power() {
+            @Override
+            public WakeLock newWakeLock(String tag, boolean referenceCounted) {
+                final PowerManager.WakeLock wakeLock =
+                        pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+                wakeLock.setReferenceCounted(referenceCounted);
+                return new WakeLock() {
+                    @Override
+                    public void acquire(long timeout) {
+                        wakeLock.acquire(timeout);
+                    }
+
+                    @Override
+                    public void release() {
+                        wakeLock.release();
+                    }
+                };
+            }
+
+            @Override
+            public void wakeUp(long time, String reason) {
+                pm.wakeUp(time, reason);
+            }
+        };
+    }
+
+    private static Torch createTorch(Context context, final Handler handler) {
+        final CameraManager cm = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        return new Torch() {
+            @Override
+            public void registerCallback(final Callback callback) {
+                cm.registerTorchCallback(new CameraManager.TorchCallback() {
+                    @Override
+                    public void onTorchModeChanged(String cameraId, boolean enabled) {
+                        callback.onTorchModeChanged(cameraId, enabled);
+                    }
+
+                    @Override
+                    public void onTorchModeUnavailable(String cameraId) {
+                        callback.onTorchModeChanged(cameraId, false);
+                    }
+                }, handler);
+            }
+
+            @Override
+            public String getRearCameraId() {
+                try {
+                    for (final String cameraId : cm.getCameraIdList()) {
+                        final CameraCharacteristics characteristics =
+                                cm.getCameraCharacteristics(cameraId);
+                        final int orientation =
+                                characteristics.get(CameraCharacteristics.LENS_FACING);
+                        if (orientation == CameraCharacteristics.LENS_FACING_BACK) {
+                            return cameraId;
+                        }
+                    }
+                } catch (CameraAccessException e) {
+                    // Ignore
+                }
+                return null;
+            }
+
+            @Override
+            public boolean setTorchMode(String cameraId, boolean enabled) {
+                try {
+                    cm.setTorchMode(cameraId, enabled);
+                    return true;
+                } catch (CameraAccessException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    private static Proximity createProximity(final Context context, final Handler handler) {
+        return new Proximity() {
+            // Registered for every arming window, so it's allocated once
+            private final SensorEventListener mSensorListener = new SensorEventListener() {
+                @Override
+                public void onSensorChanged(SensorEvent event) {
+                    final Listener listener = mListener;
+                    if (listener != null) {
+                        listener.onProximityChanged(
+                                event.values[0] == event.sensor.getMaximumRange());
+                    }
+                }
+
+                @Override
+                public void onAccuracyChanged(Sensor sensor, int accuracy) {
+                    // Ignore
+                }
+            };
+            private volatile Listener mListener;
+            private SensorManager mSensorManager;
+            private Sensor mSensor;
+
+            private synchronized Sensor getSensor() {
+                if (mSensorManager == null) {
+                    mSensorManager =
+                            (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+                    mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+                }
+                return mSensor;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return getSensor() != null;
+            }
+
+            @Override
+            public synchronized boolean register(Listener listener) {
+                final Sensor sensor = getSensor();
+                if (sensor == null) {
+                    return false;
+                }
+                if (mListener != null) {
+                    mSensorManager.unregisterListener(mSensorListener);
+                }
+                mListener = listener;
+                if (!mSensorManager.registerListener(mSensorListener, sensor,
+                        SensorManager.SENSOR_DELAY_FASTEST, handler)) {
+                    mListener = null;
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public synchronized void unregister(Listener listener) {
+                if (mListener == listener) {
+                    mSensorManager.unregisterListener(mSensorListener);
+                    mListener = null;
+                }
+            }
+        };
+    }
+
+    private static Haptics createHaptics(Context context) {
+        final Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        return new Haptics() {
+            @Override
+            public boolean hasVibrator() {
+                return vibrator != null && vibrator.hasVibrator();
+            }
+
+            @Override
+            public void vibrate(long millis) {
+                vibrator.vibrate(millis);
+            }
+        };
+    }
+
+    private static MediaKeys createMediaKeys(final Context context) {
+        return new MediaKeys() {
+            @Override
+            public boolean dispatchMediaKey(int keyCode) {
+                final MediaSessionLegacyHelper helper =
+                        MediaSessionLegacyHelper.getHelper(context);
+                if (helper == null) {
+                    return false;
+                }
+                final long now = SystemClock.uptimeMillis();
+                final KeyEvent event = new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0);
+                helper.sendMediaButtonEvent(event, true);
+                helper.sendMediaButtonEvent(KeyEvent.changeAction(event, KeyEvent.ACTION_UP),
+                        true);
+                return true;
+            }
+        };
+    }
+}
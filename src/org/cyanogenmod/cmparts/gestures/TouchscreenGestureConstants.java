@@ -25,6 +25,11 @@ class TouchscreenGestureConstants {
     // Broadcast extra: assigned actions (int[]: key = gesture ID, value = action)
     static final String UPDATE_EXTRA_ACTION_MAPPING = "action_mappings";
 
+    // Debug broadcast logging the gesture latency histograms (requires android.permission.DUMP)
+    static final String DUMP_LATENCY_ACTION = "org.cyanogenmod.cmparts.gestures.DUMP_LATENCY";
+    // Broadcast extra: clear the histograms after logging them (boolean)
+    static final String DUMP_LATENCY_EXTRA_RESET = "reset";
+
     // Touchscreen gesture actions
     static final int ACTION_FLASHLIGHT = 1;
     static final int ACTION_CAMERA = 2;
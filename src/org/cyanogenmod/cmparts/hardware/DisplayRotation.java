@@ -146,5 +146,12 @@ public class DisplayRotation extends SettingsPreferenceFragment {
             }
             return context.getString(R.string.display_rotation_enabled);
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            return new Uri[] {
+                    Settings.System.getUriFor(Settings.System.ACCELEROMETER_ROTATION)
+            };
+        }
     };
 }
@@ -20,6 +20,7 @@ import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
@@ -205,5 +206,12 @@ public class BatteryLightSettings extends SettingsPreferenceFragment implements
             }
             return context.getString(R.string.disabled);
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            return new Uri[] {
+                    CMSettings.System.getUriFor(CMSettings.System.BATTERY_LIGHT_ENABLED)
+            };
+        }
     };
 }
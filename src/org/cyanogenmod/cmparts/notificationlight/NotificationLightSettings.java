@@ -27,6 +27,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
 import android.support.v7.preference.Preference;
@@ -602,5 +603,13 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
             }
             return context.getString(R.string.disabled);
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            return new Uri[] {
+                    Settings.System.getUriFor(Settings.System.NOTIFICATION_LIGHT_PULSE),
+                    CMSettings.System.getUriFor(CMSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO)
+            };
+        }
     };
 }
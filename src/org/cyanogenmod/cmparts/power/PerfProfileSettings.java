@@ -281,5 +281,12 @@ public class PerfProfileSettings extends SettingsPreferenceFragment
             }
             return summary.replace("\\n", System.getProperty("line.separator"));
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            // The active profile also follows battery saver and per-app profiles, which
+            // aren't backed by PERFORMANCE_PROFILE
+            return null;
+        }
     };
 }
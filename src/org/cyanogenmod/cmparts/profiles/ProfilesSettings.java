@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceScreen;
@@ -317,5 +318,11 @@ public class ProfilesSettings extends SettingsPreferenceFragment
             }
             return null;
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            // The active profile isn't backed by a setting
+            return null;
+        }
     };
 }
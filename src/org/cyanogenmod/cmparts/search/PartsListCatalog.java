@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.cmparts.search;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.cyanogenmod.cmparts.search.SearchIndexSnapshot.PartRows;
+import org.cyanogenmod.cmparts.search.Searchable.SearchIndexProvider;
+import org.cyanogenmod.internal.cmparts.PartInfo;
+import org.cyanogenmod.internal.cmparts.PartsList;
+import org.cyanogenmod.platform.internal.R;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_ENTRIES;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_ICON_RESID;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_INTENT_ACTION;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_INTENT_TARGET_CLASS;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_INTENT_TARGET_PACKAGE;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_KEY;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_KEYWORDS;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_RANK;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_SCREEN_TITLE;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_SUMMARY_ON;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_TITLE;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_USER_ID;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_CLASS_NAME;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_ICON_RESID;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_ACTION;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_TARGET_CLASS;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_TARGET_PACKAGE;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_RANK;
+import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_RESID;
+import static android.provider.SearchIndexablesContract.INDEXABLES_RAW_COLUMNS;
+import static android.provider.SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS;
+import static android.provider.SearchIndexablesContract.NON_INDEXABLES_KEYS_COLUMNS;
+import static org.cyanogenmod.internal.cmparts.PartsList.CMPARTS_ACTIVITY;
+
+/**
+ * The {@link SearchIndexSnapshot.Catalog} of the parts list, with the providers registered
+ * in {@link SearchIndexableResources}
+ */
+/* package */ class PartsListCatalog implements SearchIndexSnapshot.Catalog {
+
+    private static final String TAG = "PartsListCatalog";
+
+    private final Context mContext;
+
+    PartsListCatalog(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return mContext.getResources().getConfiguration().locale;
+    }
+
+    @Override
+    public Collection<String> getPartKeys() {
+        return PartsList.get(mContext).getPartsList();
+    }
+
+    private PartInfo getPartInfo(String key) {
+        return PartsList.get(mContext).getPartInfo(key);
+    }
+
+    private static SearchIndexProvider getProvider(PartInfo info) {
+        return SearchIndexableResources.getProvider(info.getFragmentClass());
+    }
+
+    @Override
+    public boolean hasProvider(String key) {
+        final PartInfo info = getPartInfo(key);
+        return info != null && getProvider(info) != null;
+    }
+
+    /**
+     * Build the row of the xml resource listed in the resource: attribute of the part
+     * in parts_catalog.xml
+     */
+    @Override
+    public Object[] buildXmlRow(String key) {
+        final PartInfo i = getPartInfo(key);
+        if (i == null || i.getXmlRes() <= 0) {
+            return null;
+        }
+        Object[] ref = new Object[INDEXABLES_XML_RES_COLUMNS.length];
+        ref[COLUMN_INDEX_XML_RES_RANK] = 2;
+        ref[COLUMN_INDEX_XML_RES_RESID] = i.getXmlRes();
+        ref[COLUMN_INDEX_XML_RES_CLASS_NAME] = null;
+        ref[COLUMN_INDEX_XML_RES_ICON_RESID] = R.drawable.ic_launcher_cyanogenmod;
+        ref[COLUMN_INDEX_XML_RES_INTENT_ACTION] = i.getAction();
+        ref[COLUMN_INDEX_XML_RES_INTENT_TARGET_PACKAGE] = CMPARTS_ACTIVITY.getPackageName();
+        ref[COLUMN_INDEX_XML_RES_INTENT_TARGET_CLASS] = CMPARTS_ACTIVITY.getClassName();
+        return ref;
+    }
+
+    @Override
+    public PartRows buildPart(String key) {
+        final PartInfo i = getPartInfo(key);
+        if (i == null) {
+            return null;
+        }
+        final SearchIndexProvider sip = getProvider(i);
+        PartRows part = new PartRows();
+        part.mRawRows = Collections.emptyList();
+        part.mNonIndexableKeys = Collections.emptySet();
+
+        // look for custom keywords
+        if (sip == null) {
+            return part;
+        }
+        // look for non-indexable keys
+        Set<String> nik = sip.getNonIndexableKeys(mContext);
+        if (nik != null) {
+            part.mNonIndexableKeys = nik;
+        }
+
+        // we also submit keywords and metadata for all top-level items
+        // which don't have an associated XML resource.
+        // don't create a duplicate entry if no custom keywords are provided
+        // and a resource was already indexed
+        List<SearchIndexableRaw> rawList = sip.getRawDataToIndex(mContext);
+        if (rawList == null || rawList.size() == 0) {
+            if (i.getXmlRes() > 0) {
+                return part;
+            }
+            rawList = Collections.singletonList(new SearchIndexableRaw(mContext));
+        }
+
+        part.mRawRows = new ArrayList<>(rawList.size());
+        for (SearchIndexableRaw raw : rawList) {
+            part.mRawRows.add(buildRawRow(i, raw));
+        }
+        return part;
+    }
+
+    @Override
+    public PartRows buildFallbackPart(String key) {
+        final PartInfo i = getPartInfo(key);
+        PartRows part = new PartRows();
+        part.mRawRows = Collections.emptyList();
+        part.mNonIndexableKeys = Collections.emptySet();
+        if (i.getXmlRes() <= 0) {
+            part.mRawRows = Collections.singletonList(
+                    buildRawRow(i, new SearchIndexableRaw(mContext)));
+        }
+        return part;
+    }
+
+    @Override
+    public Object[] buildNonIndexableRow(String nonIndexableKey) {
+        Object[] ref = new Object[NON_INDEXABLES_KEYS_COLUMNS.length];
+        ref[COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE] = nonIndexableKey;
+        return ref;
+    }
+
+    @Override
+    public void onProviderFailed(String key, Throwable error) {
+        if (error == null) {
+            Log.w(TAG, "Timed out querying the search index provider of " + key);
+        } else {
+            Log.e(TAG, "Failed to query the search index provider of " + key, error);
+        }
+    }
+
+    private static Object[] buildRawRow(PartInfo i, SearchIndexableRaw raw) {
+        Object[] ref = new Object[INDEXABLES_RAW_COLUMNS.length];
+        ref[COLUMN_INDEX_RAW_RANK] = raw.rank > 0 ?
+                raw.rank : 2;
+        ref[COLUMN_INDEX_RAW_TITLE] = raw.title != null ?
+                raw.title : i.getTitle();
+        ref[COLUMN_INDEX_RAW_SUMMARY_ON] = i.getSummary();
+        ref[COLUMN_INDEX_RAW_KEYWORDS] = raw.keywords;
+        ref[COLUMN_INDEX_RAW_ENTRIES] = raw.entries;
+        ref[COLUMN_INDEX_RAW_SCREEN_TITLE] = raw.screenTitle != null ?
+                raw.screenTitle : i.getTitle();
+        ref[COLUMN_INDEX_RAW_ICON_RESID] = raw.iconResId > 0 ? raw.iconResId :
+                (i.getIconRes() > 0 ? i.getIconRes() : R.drawable.ic_launcher_cyanogenmod);
+        ref[COLUMN_INDEX_RAW_INTENT_ACTION] = raw.intentAction != null ?
+                raw.intentAction : i.getAction();
+        ref[COLUMN_INDEX_RAW_INTENT_TARGET_PACKAGE] = raw.intentTargetPackage != null ?
+                raw.intentTargetPackage : CMPARTS_ACTIVITY.getPackageName();
+        ref[COLUMN_INDEX_RAW_INTENT_TARGET_CLASS] = raw.intentTargetClass != null ?
+                raw.intentTargetClass : CMPARTS_ACTIVITY.getClassName();
+        ref[COLUMN_INDEX_RAW_KEY] = raw.key != null ?
+                raw.key : i.getName();
+        ref[COLUMN_INDEX_RAW_USER_ID] = -1;
+        return ref;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.cmparts.search;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A ring buffer with the latest search indexing timings (queries and providers), so they
+ * can be read with dumpsys.
+ */
+/* package */ class SearchIndexLatency {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final int mCapacity;
+
+    // All the fields are guarded by this
+    private final String[] mNames;
+    private final long[] mDurations;
+    private final long[] mTimes;
+    private int mNext;
+    private int mCount;
+
+    SearchIndexLatency() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of timings kept
+     */
+    SearchIndexLatency(int capacity) {
+        mCapacity = capacity;
+        mNames = new String[capacity];
+        mDurations = new long[capacity];
+        mTimes = new long[capacity];
+    }
+
+    /**
+     * Record a timing
+     *
+     * @param name the query or the provider that was timed
+     * @param durationNanos the elapsed time, in nanoseconds
+     */
+    synchronized void record(String name, long durationNanos) {
+        mNames[mNext] = name;
+        mDurations[mNext] = durationNanos;
+        mTimes[mNext] = System.currentTimeMillis();
+        mNext = (mNext + 1) % mCapacity;
+        mCount = Math.min(mCapacity, mCount + 1);
+    }
+
+    /**
+     * Print the percentiles of every timed name, and then every recorded timing
+     */
+    synchronized void dump(PrintWriter pw) {
+        dumpPercentiles(pw);
+
+        final int first = (mNext - mCount + mCapacity) % mCapacity;
+        pw.println("  Samples:");
+        for (int i = 0; i < mCount; i++) {
+            final int index = (first + i) % mCapacity;
+            pw.println("    " + mTimes[index] + " " + mNames[index] + " "
+                    + toMillis(mDurations[index]) + "ms");
+        }
+    }
+
+    /**
+     * Print the percentiles of every timed name, in the order they were first timed
+     */
+    synchronized void dumpPercentiles(PrintWriter pw) {
+        final int first = (mNext - mCount + mCapacity) % mCapacity;
+
+        // Group the durations by name
+        final Map<String, long[]> durations = new LinkedHashMap<>();
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        for (int i = 0; i < mCount; i++) {
+            final int index = (first + i) % mCapacity;
+            long[] values = durations.get(mNames[index]);
+            int count = counts.containsKey(mNames[index]) ? counts.get(mNames[index]) : 0;
+            if (values == null) {
+                values = new long[mCount];
+                durations.put(mNames[index], values);
+            }
+            values[count] = mDurations[index];
+            counts.put(mNames[index], count + 1);
+        }
+
+        pw.println("  Latency (last " + mCount + " samples):");
+        for (Map.Entry<String, long[]> entry : durations.entrySet()) {
+            final int count = counts.get(entry.getKey());
+            final long[] values = Arrays.copyOf(entry.getValue(), count);
+            Arrays.sort(values);
+            pw.println("    " + entry.getKey() + ": n=" + count
+                    + " p50=" + toMillis(percentile(values, 50))
+                    + "ms p99=" + toMillis(percentile(values, 99))
+                    + "ms max=" + toMillis(values[count - 1]) + "ms");
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100f * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1000000f);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.cmparts.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An in-memory snapshot of the search index rows of every part. The rows of a part are
+ * built the first time they are needed, and kept until the locale changes. None of the
+ * {@link Searchable.SearchIndexProvider}s depend on settings: their rows only change with
+ * the hardware features, the parts catalog or the bundled data, which all come with a new
+ * package. A package update restarts the process, so it starts with a new snapshot.
+ * <p/>
+ * Every change bumps the version of the snapshot, and the rows of each query are only
+ * gathered again when the version doesn't match the one they were gathered at.
+ * <p/>
+ * Some providers do real I/O, so the parts with a provider are built concurrently on a
+ * bounded pool, and merged in the order of the parts list. A provider that doesn't answer
+ * in time is indexed as if it had nothing to add, and asked again by the next query.
+ * The XML rows only come from the parts catalog, so they are gathered without asking the
+ * providers.
+ * <p/>
+ * The snapshot only talks to a {@link Catalog} (and doesn't use the Android framework),
+ * so it can be benchmarked off-device with stub parts. {@link PartsListCatalog} backs it
+ * with the parts list and the registered providers.
+ */
+/* package */ class SearchIndexSnapshot {
+
+    private static final int MAX_THREADS = 4;
+    private static final long PROVIDER_TIMEOUT_MS = 2000;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+            Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The parts to index, and the builders of their rows
+     */
+    interface Catalog {
+        Locale getLocale();
+
+        /**
+         * @return the keys of every part, in the order they are indexed
+         */
+        Collection<String> getPartKeys();
+
+        /**
+         * @return the XML row of the part, or null if it has no xml resource
+         */
+        Object[] buildXmlRow(String key);
+
+        /**
+         * @return whether the part has a search index provider, which may be slow
+         */
+        boolean hasProvider(String key);
+
+        /**
+         * Build the raw and non-indexable rows of the part, asking its provider if it has
+         * one. Called on the pool for the parts with a provider.
+         */
+        PartRows buildPart(String key);
+
+        /**
+         * Build the rows of a part whose provider didn't answer, as if it had nothing to add
+         */
+        PartRows buildFallbackPart(String key);
+
+        Object[] buildNonIndexableRow(String nonIndexableKey);
+
+        /**
+         * Called when the provider of the part timed out (the error is null), or threw
+         */
+        void onProviderFailed(String key, Throwable error);
+    }
+
+    /**
+     * The rows of a single part
+     */
+    static class PartRows {
+        List<Object[]> mRawRows;
+        Set<String> mNonIndexableKeys;
+        // Whether the provider answered. Incomplete rows are never kept
+        boolean mComplete = true;
+    }
+
+    /**
+     * The rows of every part, as gathered by a single call to getParts()
+     */
+    private static class Parts {
+        final Map<String, PartRows> mRows = new HashMap<>();
+        // The snapshot version the parts were gathered at
+        int mVersion;
+        // Whether every provider answered. Rows gathered from an incomplete set of parts
+        // are not kept for the next query
+        boolean mComplete = true;
+    }
+
+    private final Catalog mCatalog;
+    private final ExecutorService mExecutor;
+    private final SearchIndexLatency mLatency;
+
+    // All the fields are guarded by this
+    private final Map<String, PartRows> mParts = new HashMap<>();
+    private Locale mLocale;
+    private int mVersion;
+
+    private List<Object[]> mXmlRows;
+    private int mXmlRowsVersion = -1;
+    private List<Object[]> mRawRows;
+    private int mRawRowsVersion = -1;
+    private List<Object[]> mNonIndexableRows;
+    private int mNonIndexableRowsVersion = -1;
+
+    SearchIndexSnapshot(Catalog catalog, SearchIndexLatency latency) {
+        this(catalog, sExecutor, latency);
+    }
+
+    /**
+     * @param executor the pool the providers are queried on
+     */
+    SearchIndexSnapshot(Catalog catalog, ExecutorService executor, SearchIndexLatency latency) {
+        mCatalog = catalog;
+        mExecutor = executor;
+        mLatency = latency;
+    }
+
+    /**
+     * @return the rows of {@link android.provider.SearchIndexablesContract#INDEXABLES_XML_RES_COLUMNS}
+     */
+    List<Object[]> getXmlRows() {
+        final int version;
+        synchronized (this) {
+            checkLocale();
+            if (mXmlRowsVersion == mVersion) {
+                return mXmlRows;
+            }
+            version = mVersion;
+        }
+
+        // The XML rows only come from the parts catalog, so the providers aren't queried
+        List<Object[]> rows = new ArrayList<>();
+        for (String key : mCatalog.getPartKeys()) {
+            Object[] row = mCatalog.buildXmlRow(key);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+
+        synchronized (this) {
+            if (version == mVersion) {
+                mXmlRows = rows;
+                mXmlRowsVersion = mVersion;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return the rows of {@link android.provider.SearchIndexablesContract#INDEXABLES_RAW_COLUMNS}
+     */
+    List<Object[]> getRawRows() {
+        synchronized (this) {
+            checkLocale();
+            if (mRawRowsVersion == mVersion) {
+                return mRawRows;
+            }
+        }
+
+        final Collection<String> keys = mCatalog.getPartKeys();
+        final Parts parts = getParts(keys);
+        List<Object[]> rows = new ArrayList<>();
+        for (String key : keys) {
+            PartRows part = parts.mRows.get(key);
+            if (part != null) {
+                rows.addAll(part.mRawRows);
+            }
+        }
+
+        synchronized (this) {
+            if (parts.mComplete && parts.mVersion == mVersion) {
+                mRawRows = rows;
+                mRawRowsVersion = mVersion;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return the rows of {@link android.provider.SearchIndexablesContract#NON_INDEXABLES_KEYS_COLUMNS}
+     */
+    List<Object[]> getNonIndexableRows() {
+        synchronized (this) {
+            checkLocale();
+            if (mNonIndexableRowsVersion == mVersion) {
+                return mNonIndexableRows;
+            }
+        }
+
+        final Collection<String> keys = mCatalog.getPartKeys();
+        final Parts parts = getParts(keys);
+        final Set<String> nonIndexables = new LinkedHashSet<>();
+        for (String key : keys) {
+            PartRows part = parts.mRows.get(key);
+            if (part != null) {
+                nonIndexables.addAll(part.mNonIndexableKeys);
+            }
+        }
+        List<Object[]> rows = new ArrayList<>(nonIndexables.size());
+        for (String nik : nonIndexables) {
+            rows.add(mCatalog.buildNonIndexableRow(nik));
+        }
+
+        synchronized (this) {
+            if (parts.mComplete && parts.mVersion == mVersion) {
+                mNonIndexableRows = rows;
+                mNonIndexableRowsVersion = mVersion;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Drop the rows of every part
+     */
+    synchronized void invalidate() {
+        mParts.clear();
+        mVersion++;
+    }
+
+    private void checkLocale() {
+        final Locale locale = mCatalog.getLocale();
+        if (!locale.equals(mLocale)) {
+            if (mLocale != null) {
+                invalidate();
+            }
+            mLocale = locale;
+        }
+    }
+
+    /**
+     * @return the rows of every part, building the missing ones. The providers are waited
+     * for without holding the snapshot lock, so a locale change can still invalidate the
+     * parts meanwhile; rows built across an invalidation are returned but not kept.
+     */
+    private Parts getParts(Collection<String> keys) {
+        final Parts parts = new Parts();
+        final Map<String, Future<PartRows>> pending = new LinkedHashMap<>();
+
+        // Take the cached parts, and start querying the providers of the missing ones
+        synchronized (this) {
+            parts.mVersion = mVersion;
+            for (final String key : keys) {
+                PartRows part = mParts.get(key);
+                if (part != null) {
+                    parts.mRows.put(key, part);
+                } else if (!mCatalog.hasProvider(key)) {
+                    // Nothing slow to query
+                    part = mCatalog.buildPart(key);
+                    if (part != null) {
+                        parts.mRows.put(key, part);
+                    }
+                } else {
+                    pending.put(key, mExecutor.submit(new Callable<PartRows>() {
+                        @Override
+                        public PartRows call() {
+                            final long start = System.nanoTime();
+                            try {
+                                return mCatalog.buildPart(key);
+                            } finally {
+                                mLatency.record(key, System.nanoTime() - start);
+                            }
+                        }
+                    }));
+                }
+            }
+        }
+
+        // Wait for the providers. The rows are merged by key later, so the order
+        // they finish in doesn't matter
+        final long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(PROVIDER_TIMEOUT_MS);
+        for (Map.Entry<String, Future<PartRows>> entry : pending.entrySet()) {
+            final String key = entry.getKey();
+            final Future<PartRows> future = entry.getValue();
+            PartRows part;
+            try {
+                part = future.get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                mCatalog.onProviderFailed(key, null);
+                mLatency.record(key + " (timeout)",
+                        TimeUnit.MILLISECONDS.toNanos(PROVIDER_TIMEOUT_MS));
+                future.cancel(true);
+                part = mCatalog.buildFallbackPart(key);
+                part.mComplete = false;
+                parts.mComplete = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                parts.mComplete = false;
+                continue;
+            } catch (ExecutionException e) {
+                mCatalog.onProviderFailed(key, e.getCause());
+                part = mCatalog.buildFallbackPart(key);
+            }
+            parts.mRows.put(key, part);
+        }
+
+        // Keep the new parts, unless something was invalidated while they were built
+        synchronized (this) {
+            if (parts.mVersion == mVersion) {
+                for (Map.Entry<String, PartRows> entry : parts.mRows.entrySet()) {
+                    if (entry.getValue().mComplete) {
+                        mParts.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.cmparts.search;
+
+import android.util.ArrayMap;
+
+import org.cyanogenmod.cmparts.contributors.ContributorsCloudFragment;
+import org.cyanogenmod.cmparts.livedisplay.LiveDisplay;
+import org.cyanogenmod.cmparts.search.Searchable.SearchIndexProvider;
+
+import java.util.Map;
+
+/**
+ * The registry of every {@link Searchable} class, mapping its class name to its
+ * {@link SearchIndexProvider}. This is built once per process, so indexing doesn't need
+ * to look up the providers through reflection.
+ */
+public final class SearchIndexableResources {
+
+    private static final Map<String, SearchIndexProvider> sProviders = new ArrayMap<>();
+
+    static {
+        addProvider(ContributorsCloudFragment.class,
+                ContributorsCloudFragment.SEARCH_INDEX_DATA_PROVIDER);
+        addProvider(LiveDisplay.class, LiveDisplay.SEARCH_INDEX_DATA_PROVIDER);
+    }
+
+    private SearchIndexableResources() {
+    }
+
+    private static void addProvider(Class<? extends Searchable> clazz,
+            SearchIndexProvider provider) {
+        sProviders.put(clazz.getName(), provider);
+    }
+
+    /**
+     * @return the search index provider of the passed class name, or null if the class
+     * isn't searchable
+     */
+    public static SearchIndexProvider getProvider(String className) {
+        return sProviders.get(className);
+    }
+}
@@ -27,8 +27,9 @@ import java.util.Set;
  * and non-indexable keys may be supplied by a class.
  *
  * If a class wants to use this functionality, it should contain a static field
- * named SEARCH_INDEX_DATA_PROVIDER which contains an instance of SearchIndexProvider.
- * This is similar to the mechanism used by the Settings app.
+ * named SEARCH_INDEX_DATA_PROVIDER which contains an instance of SearchIndexProvider,
+ * and register it in {@link SearchIndexableResources}. This is similar to the mechanism
+ * used by the Settings app.
  */
 public interface Searchable {
 
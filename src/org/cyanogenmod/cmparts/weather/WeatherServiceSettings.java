@@ -485,5 +485,11 @@ public class WeatherServiceSettings extends SettingsPreferenceFragment
             }
             return context.getString(R.string.weather_settings_no_services_summary);
         }
+
+        @Override
+        public Uri[] getTriggerUris(Context context) {
+            // The installed weather providers aren't backed by a setting
+            return null;
+        }
     };
 }
@@ -0,0 +1,24 @@
+#!/bin/sh
+#
+# Build GestureDispatcher with the host JDK and replay gesture recordings through it.
+# Without arguments, every recording is replayed along with a generated stream for the
+# throughput. Runs on plain Linux, no Android tree needed.
+
+set -e
+
+DIR=$(dirname "$0")
+SRC=$DIR/../../src/org/cyanogenmod/cmparts/gestures
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -d "$OUT" \
+    "$SRC/GestureDispatcher.java" \
+    "$SRC/GestureLatencyStats.java" \
+    "$SRC/GestureServices.java" \
+    "$SRC/TouchscreenGestureConstants.java" \
+    "$DIR/src/org/cyanogenmod/cmparts/gestures/GestureReplayHarness.java"
+
+if [ $# -eq 0 ]; then
+    set -- "$DIR"/recordings/*.gestures --generate 100000 1
+fi
+java -cp "$OUT" org.cyanogenmod.cmparts.gestures.GestureReplayHarness "$@"
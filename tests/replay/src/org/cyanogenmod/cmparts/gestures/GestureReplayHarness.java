@@ -0,0 +1,676 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.gestures;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Replays recorded gesture streams through {@link GestureDispatcher} on a plain JVM, in
+ * virtual time. The scheduler thread is modelled as a single queue which is busy while
+ * an action runs, so gestures arriving meanwhile find their predecessor pending exactly
+ * as on a device.
+ *
+ * Usage: GestureReplayHarness [recording...] [--generate gestures seed]
+ *
+ * Recordings are text files, one entry per line ('#' starts a comment):
+ *   map <scan code> <action id or package>
+ *   proximity_check on|off
+ *   proximity_timeout <ms>
+ *   sensor_latency <ms>          time from registering the sensor to its first reading
+ *   action_cost <action id> <ms> time the action keeps the scheduler thread busy
+ *   <time ms> <scan code> down|up
+ *   <time ms> proximity near|far
+ *   <time ms> screen_off
+ *   expect <counter> <value>     gestures, dispatched, dropped_busy, dropped_near or
+ *                                proximity_timeouts, checked after the replay
+ *
+ * The exit status is non zero if a recording can't be parsed, an expectation fails or the
+ * proximity sensor is left registered while no wake lock is held.
+ */
+public class GestureReplayHarness {
+
+    // Message of the fake sensor, delivered on the scheduler thread like the real one
+    private static final int SENSOR_READING = -1;
+
+    private static final String[] ACTION_NAMES = {
+            null, "flashlight", "camera", "browser", "dialer", "email", "messages",
+            "play_pause", "previous_track", "next_track", "custom"
+    };
+
+    private static final String[] COUNTERS = {
+            "gestures", "dispatched", "dropped_busy", "dropped_near", "proximity_timeouts"
+    };
+
+    private static final int EVENT_KEY_DOWN = 0;
+    private static final int EVENT_KEY_UP = 1;
+    private static final int EVENT_NEAR = 2;
+    private static final int EVENT_FAR = 3;
+    private static final int EVENT_SCREEN_OFF = 4;
+
+    // android.view.KeyEvent key codes
+    private static final int KEYCODE_MEDIA_PLAY_PAUSE = 85;
+    private static final int KEYCODE_MEDIA_NEXT = 87;
+    private static final int KEYCODE_MEDIA_PREVIOUS = 88;
+
+    private static class Event {
+        final long mTime;
+        final int mType;
+        final int mScanCode;
+
+        Event(long time, int type, int scanCode) {
+            mTime = time;
+            mType = type;
+            mScanCode = scanCode;
+        }
+    }
+
+    private static class Recording {
+        final String mName;
+        final List<Integer> mKeycodes = new ArrayList<>();
+        final List<String> mActions = new ArrayList<>();
+        final List<Event> mEvents = new ArrayList<>();
+        final List<String> mExpectations = new ArrayList<>();
+        final long[] mActionCosts = new long[ACTION_NAMES.length];
+        boolean mProximityCheck;
+        int mProximityTimeout = 250;
+        long mSensorLatency = 50;
+
+        Recording(String name) {
+            mName = name;
+        }
+    }
+
+    private static class Message implements Comparable<Message> {
+        final long mTime;
+        final long mSequence;
+        final int mWhat;
+        final int mArg1;
+        final int mArg2;
+
+        Message(long time, long sequence, int what, int arg1, int arg2) {
+            mTime = time;
+            mSequence = sequence;
+            mWhat = what;
+            mArg1 = arg1;
+            mArg2 = arg2;
+        }
+
+        @Override
+        public int compareTo(Message other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private static class VirtualScheduler implements GestureDispatcher.Scheduler {
+        final PriorityQueue<Message> mQueue = new PriorityQueue<>();
+        long mNow;
+        long mSequence;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public boolean sendMessageDelayed(int what, int arg1, int arg2, long delayMillis) {
+            mQueue.add(new Message(mNow + Math.max(0, delayMillis), mSequence++,
+                    what, arg1, arg2));
+            return true;
+        }
+
+        @Override
+        public boolean hasMessages(int what) {
+            for (Message message : mQueue) {
+                if (message.mWhat == what) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void removeMessages(int what) {
+            for (Iterator<Message> it = mQueue.iterator(); it.hasNext(); ) {
+                if (it.next().mWhat == what) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static class FakeProximity implements GestureServices.Proximity {
+        final VirtualScheduler mScheduler;
+        final long mLatency;
+        Listener mListener;
+        boolean mFar = true;
+        int mRegistrations;
+
+        FakeProximity(VirtualScheduler scheduler, long latency) {
+            mScheduler = scheduler;
+            mLatency = latency;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean register(Listener listener) {
+            mListener = listener;
+            mRegistrations++;
+            mScheduler.sendMessageDelayed(SENSOR_READING, mFar ? 1 : 0, 0, mLatency);
+            return true;
+        }
+
+        @Override
+        public void unregister(Listener listener) {
+            mListener = null;
+            mScheduler.removeMessages(SENSOR_READING);
+        }
+
+        void setFar(boolean far) {
+            mFar = far;
+            if (mListener != null) {
+                mScheduler.sendMessageDelayed(SENSOR_READING, far ? 1 : 0, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * A wake lock which is held until its timeout in virtual time, or until it's released
+     * as many times as it was acquired when it's reference counted
+     */
+    private static class FakeWakeLock implements GestureServices.WakeLock {
+        final VirtualScheduler mScheduler;
+        final boolean mReferenceCounted;
+        int mCount;
+        long mHeldUntil;
+
+        FakeWakeLock(VirtualScheduler scheduler, boolean referenceCounted) {
+            mScheduler = scheduler;
+            mReferenceCounted = referenceCounted;
+        }
+
+        @Override
+        public void acquire(long timeout) {
+            mCount = mReferenceCounted && isHeld() ? mCount + 1 : 1;
+            mHeldUntil = mReferenceCounted
+                    ? Math.max(mHeldUntil, mScheduler.mNow + timeout) : mScheduler.mNow + timeout;
+        }
+
+        @Override
+        public void release() {
+            if (isHeld() && --mCount == 0) {
+                mHeldUntil = 0;
+            }
+        }
+
+        boolean isHeld() {
+            return mHeldUntil > mScheduler.mNow;
+        }
+    }
+
+    /**
+     * Counts the calls to the services which have no effect off-device
+     */
+    private static class FakeServices implements GestureServices.Power, GestureServices.Torch,
+            GestureServices.Haptics, GestureServices.MediaKeys {
+        final VirtualScheduler mScheduler;
+        final List<FakeWakeLock> mWakeLocks = new ArrayList<>();
+        int mWakeLockAcquisitions;
+        int mWakeUps;
+        int mTorchToggles;
+        int mVibrations;
+        int mMediaKeys;
+
+        FakeServices(VirtualScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public GestureServices.WakeLock newWakeLock(String tag, boolean referenceCounted) {
+            final FakeWakeLock wakeLock = new FakeWakeLock(mScheduler, referenceCounted) {
+                @Override
+                public void acquire(long timeout) {
+                    mWakeLockAcquisitions++;
+                    super.acquire(timeout);
+                }
+            };
+            mWakeLocks.add(wakeLock);
+            return wakeLock;
+        }
+
+        /**
+         * @return whether a wake lock keeps the device from suspending
+         */
+        boolean isAwake() {
+            for (FakeWakeLock wakeLock : mWakeLocks) {
+                if (wakeLock.isHeld()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void wakeUp(long time, String reason) {
+            mWakeUps++;
+        }
+
+        @Override
+        public void registerCallback(Callback callback) {
+        }
+
+        @Override
+        public String getRearCameraId() {
+            return "0";
+        }
+
+        @Override
+        public boolean setTorchMode(String cameraId, boolean enabled) {
+            mTorchToggles++;
+            return true;
+        }
+
+        @Override
+        public boolean hasVibrator() {
+            return true;
+        }
+
+        @Override
+        public void vibrate(long millis) {
+            mVibrations++;
+        }
+
+        @Override
+        public boolean dispatchMediaKey(int keyCode) {
+            mMediaKeys++;
+            return true;
+        }
+    }
+
+    private static class FakeSettings implements GestureDispatcher.Settings {
+        final Recording mRecording;
+
+        FakeSettings(Recording recording) {
+            mRecording = recording;
+        }
+
+        @Override
+        public boolean isSetupCompleted() {
+            return true;
+        }
+
+        @Override
+        public boolean isProximityCheckEnabled() {
+            return mRecording.mProximityCheck;
+        }
+
+        @Override
+        public int getProximityTimeout() {
+            return mRecording.mProximityTimeout;
+        }
+    }
+
+    /**
+     * Records the latency from the input event to the start of the action, performs it
+     * through the services like KeyHandler does, and keeps the scheduler busy for the cost
+     * of the action
+     */
+    private static class FakeLauncher implements GestureDispatcher.Launcher {
+        final VirtualScheduler mScheduler;
+        final GestureServices mServices;
+        final long[] mActionCosts;
+        final long[][] mLatencies = new long[ACTION_NAMES.length][16];
+        final int[] mCounts = new int[ACTION_NAMES.length];
+        long mEventTime;
+
+        FakeLauncher(VirtualScheduler scheduler, GestureServices services, long[] actionCosts) {
+            mScheduler = scheduler;
+            mServices = services;
+            mActionCosts = actionCosts;
+        }
+
+        @Override
+        public void performAction(int action, int scanCode) {
+            if (mCounts[action] == mLatencies[action].length) {
+                mLatencies[action] = Arrays.copyOf(mLatencies[action], mCounts[action] * 2);
+            }
+            mLatencies[action][mCounts[action]++] = mScheduler.mNow - mEventTime;
+
+            switch (action) {
+                case TouchscreenGestureConstants.ACTION_FLASHLIGHT:
+                    mServices.mTorch.setTorchMode(mServices.mTorch.getRearCameraId(), true);
+                    break;
+                case TouchscreenGestureConstants.ACTION_PLAY_PAUSE_MUSIC:
+                    mServices.mMediaKeys.dispatchMediaKey(KEYCODE_MEDIA_PLAY_PAUSE);
+                    break;
+                case TouchscreenGestureConstants.ACTION_PREVIOUS_TRACK:
+                    mServices.mMediaKeys.dispatchMediaKey(KEYCODE_MEDIA_PREVIOUS);
+                    break;
+                case TouchscreenGestureConstants.ACTION_NEXT_TRACK:
+                    mServices.mMediaKeys.dispatchMediaKey(KEYCODE_MEDIA_NEXT);
+                    break;
+                default:
+                    mServices.mPower.wakeUp(mScheduler.mNow, "replay");
+                    break;
+            }
+            if (mServices.mHaptics.hasVibrator()) {
+                mServices.mHaptics.vibrate(50);
+            }
+            mScheduler.mNow += mActionCosts[action];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final PrintWriter pw = new PrintWriter(System.out, true);
+        boolean ok = true;
+        for (int i = 0; i < args.length; i++) {
+            final Recording recording;
+            if (args[i].equals("--generate") && i + 2 < args.length) {
+                recording = generate(Integer.parseInt(args[i + 1]),
+                        Long.parseLong(args[i + 2]));
+                i += 2;
+            } else {
+                try {
+                    recording = parse(args[i]);
+                } catch (IllegalArgumentException e) {
+                    pw.println("== " + args[i] + ": " + e.getMessage());
+                    ok = false;
+                    continue;
+                }
+            }
+            ok &= replay(recording, pw);
+            pw.println();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static Recording parse(String path) throws IOException {
+        final Recording recording = new Recording(path);
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                final int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                final String[] words = line.trim().split("\\s+");
+                if (words[0].isEmpty()) {
+                    continue;
+                }
+                try {
+                    parseLine(recording, words);
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("line " + lineNumber + ": " + line, e);
+                }
+            }
+        }
+        return recording;
+    }
+
+    private static void parseLine(Recording recording, String[] words) {
+        switch (words[0]) {
+            case "map":
+                recording.mKeycodes.add(Integer.parseInt(words[1]));
+                recording.mActions.add(words[2]);
+                return;
+            case "proximity_check":
+                recording.mProximityCheck = words[1].equals("on");
+                return;
+            case "proximity_timeout":
+                recording.mProximityTimeout = Integer.parseInt(words[1]);
+                return;
+            case "sensor_latency":
+                recording.mSensorLatency = Long.parseLong(words[1]);
+                return;
+            case "action_cost":
+                recording.mActionCosts[Integer.parseInt(words[1])] = Long.parseLong(words[2]);
+                return;
+            case "expect":
+                if (!Arrays.asList(COUNTERS).contains(words[1])) {
+                    throw new IllegalArgumentException("Unknown counter " + words[1]);
+                }
+                Integer.parseInt(words[2]);
+                recording.mExpectations.add(words[1] + " " + words[2]);
+                return;
+        }
+
+        final long time = Long.parseLong(words[0]);
+        final Event event;
+        if (words[1].equals("proximity")) {
+            event = new Event(time, words[2].equals("near") ? EVENT_NEAR : EVENT_FAR, 0);
+        } else if (words[1].equals("screen_off")) {
+            event = new Event(time, EVENT_SCREEN_OFF, 0);
+        } else if (words[2].equals("down") || words[2].equals("up")) {
+            event = new Event(time, words[2].equals("up") ? EVENT_KEY_UP : EVENT_KEY_DOWN,
+                    Integer.parseInt(words[1]));
+        } else {
+            throw new IllegalArgumentException("Unknown event " + words[2]);
+        }
+        recording.mEvents.add(event);
+    }
+
+    /**
+     * @return a long random stream over every action, with the proximity check on, to
+     * measure the dispatch throughput
+     */
+    private static Recording generate(int gestures, long seed) {
+        final Recording recording = new Recording("generated (" + gestures + " gestures, seed "
+                + seed + ")");
+        final Random random = new Random(seed);
+        recording.mProximityCheck = true;
+        recording.mSensorLatency = 80;
+        for (int action = 1; action < ACTION_NAMES.length; action++) {
+            recording.mKeycodes.add(250 + action);
+            recording.mActions.add(action == TouchscreenGestureConstants.ACTION_CUSTOM
+                    ? "org.example.app" : String.valueOf(action));
+            recording.mActionCosts[action] = 5 + random.nextInt(60);
+        }
+
+        long time = 0;
+        for (int i = 0; i < gestures; i++) {
+            // Mostly spaced out gestures, with a burst now and then
+            time += random.nextInt(10) == 0 ? 1 + random.nextInt(30) : 100 + random.nextInt(3000);
+            if (random.nextInt(100) == 0) {
+                // In a pocket for a few seconds
+                recording.mEvents.add(new Event(time, EVENT_NEAR, 0));
+                recording.mEvents.add(new Event(time + 2000 + random.nextInt(8000),
+                        EVENT_FAR, 0));
+            }
+            final int scanCode = 251 + random.nextInt(ACTION_NAMES.length - 1);
+            recording.mEvents.add(new Event(time, EVENT_KEY_DOWN, scanCode));
+            time += 20 + random.nextInt(200);
+            recording.mEvents.add(new Event(time, EVENT_KEY_UP, scanCode));
+        }
+        return recording;
+    }
+
+    private static boolean replay(Recording recording, PrintWriter pw) {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final FakeProximity sensor = new FakeProximity(scheduler, recording.mSensorLatency);
+        final FakeServices fakes = new FakeServices(scheduler);
+        final GestureServices services =
+                new GestureServices(fakes, fakes, sensor, fakes, fakes);
+        final FakeLauncher launcher =
+                new FakeLauncher(scheduler, services, recording.mActionCosts);
+        final GestureDispatcher dispatcher = new GestureDispatcher(new FakeSettings(recording),
+                scheduler, services, launcher);
+
+        final int[] keycodes = new int[recording.mKeycodes.size()];
+        for (int i = 0; i < keycodes.length; i++) {
+            keycodes[i] = recording.mKeycodes.get(i);
+        }
+        dispatcher.setMapping(keycodes,
+                recording.mActions.toArray(new String[recording.mActions.size()]));
+
+        final List<Event> events = new ArrayList<>(recording.mEvents);
+        // Stable, so events recorded at the same time keep their order
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return Long.compare(a.mTime, b.mTime);
+            }
+        });
+
+        final long start = System.nanoTime();
+        long busyUntil = 0;
+        int next = 0;
+        // The device may suspend whenever no wake lock is held, and uptime messages such as
+        // DISARM_PROXIMITY would then leave the sensor on
+        int unguardedSensor = 0;
+        while (next < events.size() || !scheduler.mQueue.isEmpty()) {
+            final Message message = scheduler.mQueue.peek();
+            final long messageTime = message != null
+                    ? Math.max(message.mTime, busyUntil) : Long.MAX_VALUE;
+            if (next < events.size() && events.get(next).mTime < messageTime) {
+                // Input arrives on its own thread, even while an action runs
+                final Event event = events.get(next++);
+                scheduler.mNow = event.mTime;
+                deliver(dispatcher, sensor, launcher, event);
+                if (sensor.mListener != null && !fakes.isAwake()) {
+                    unguardedSensor++;
+                }
+                continue;
+            }
+
+            scheduler.mQueue.poll();
+            scheduler.mNow = messageTime;
+            if (message.mWhat == SENSOR_READING) {
+                if (sensor.mListener != null) {
+                    sensor.mListener.onProximityChanged(message.mArg1 != 0);
+                }
+            } else {
+                dispatcher.handleMessage(message.mWhat, message.mArg1, message.mArg2);
+            }
+            busyUntil = scheduler.mNow;
+            if (sensor.mListener != null && !fakes.isAwake()) {
+                unguardedSensor++;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        pw.println("== " + recording.mName);
+        pw.println("gestures " + dispatcher.getGestureCount()
+                + ", dispatched " + dispatcher.getDispatchedCount()
+                + ", dropped (busy) " + dispatcher.getDroppedBusyCount()
+                + ", dropped (near) " + dispatcher.getDroppedNearCount()
+                + ", proximity timeouts " + dispatcher.getProximityTimeoutCount()
+                + ", sensor registrations " + sensor.mRegistrations);
+        pw.println("services: wake lock acquisitions " + fakes.mWakeLockAcquisitions
+                + ", wake ups " + fakes.mWakeUps + ", torch toggles " + fakes.mTorchToggles
+                + ", media keys " + fakes.mMediaKeys + ", vibrations " + fakes.mVibrations);
+        pw.println(String.format("replayed %d events in %.2f ms: %.0f events/s, "
+                + "%.0f gestures/s", events.size(), elapsed / 1e6,
+                events.size() * 1e9 / Math.max(1, elapsed),
+                dispatcher.getGestureCount() * 1e9 / Math.max(1, elapsed)));
+
+        pw.println(String.format("%-16s %8s %8s %8s %8s", "event -> action",
+                "n", "p50 ms", "p99 ms", "max ms"));
+        for (int action = 1; action < ACTION_NAMES.length; action++) {
+            final int count = launcher.mCounts[action];
+            if (count == 0) {
+                continue;
+            }
+            final long[] latencies = Arrays.copyOf(launcher.mLatencies[action], count);
+            Arrays.sort(latencies);
+            pw.println(String.format("%-16s %8d %8d %8d %8d", ACTION_NAMES[action], count,
+                    percentile(latencies, 50), percentile(latencies, 99),
+                    latencies[count - 1]));
+        }
+        dispatcher.dump(pw);
+
+        boolean ok = unguardedSensor == 0;
+        if (!ok) {
+            pw.println("FAILED: sensor left registered without a wake lock " + unguardedSensor
+                    + " times");
+        }
+        for (String expectation : recording.mExpectations) {
+            final String[] words = expectation.split(" ");
+            final int actual = getCounter(dispatcher, words[0]);
+            final boolean passed = actual == Integer.parseInt(words[1]);
+            pw.println("expect " + expectation + ": " + (passed ? "ok" : "FAILED, got " + actual));
+            ok &= passed;
+        }
+        return ok;
+    }
+
+    private static void deliver(GestureDispatcher dispatcher, FakeProximity sensor,
+            FakeLauncher launcher, Event event) {
+        switch (event.mType) {
+            case EVENT_KEY_DOWN:
+                dispatcher.onKeyEvent(event.mScanCode, false, event.mTime);
+                break;
+            case EVENT_KEY_UP:
+                final int gestures = dispatcher.getGestureCount();
+                final int dropped = dispatcher.getDroppedBusyCount();
+                dispatcher.onKeyEvent(event.mScanCode, true, event.mTime);
+                if (dispatcher.getGestureCount() != gestures
+                        && dispatcher.getDroppedBusyCount() == dropped) {
+                    // Accepted, this is now the gesture in flight
+                    launcher.mEventTime = event.mTime;
+                }
+                break;
+            case EVENT_NEAR:
+                sensor.setFar(false);
+                break;
+            case EVENT_FAR:
+                sensor.setFar(true);
+                break;
+            case EVENT_SCREEN_OFF:
+                dispatcher.onScreenOff();
+                break;
+        }
+    }
+
+    private static int getCounter(GestureDispatcher dispatcher, String name) {
+        switch (name) {
+            case "gestures":
+                return dispatcher.getGestureCount();
+            case "dispatched":
+                return dispatcher.getDispatchedCount();
+            case "dropped_busy":
+                return dispatcher.getDroppedBusyCount();
+            case "dropped_near":
+                return dispatcher.getDroppedNearCount();
+            default:
+                return dispatcher.getProximityTimeoutCount();
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100f * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
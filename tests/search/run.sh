@@ -0,0 +1,19 @@
+#!/bin/sh
+#
+# Build SearchIndexSnapshot with the host JDK and run indexing passes through it, with a
+# stub parts list and stub providers. Prints the p50/p99 of every query and provider.
+# Arguments: [passes] [threads] [seed]. Runs on plain Linux, no Android tree needed.
+
+set -e
+
+DIR=$(dirname "$0")
+SRC=$DIR/../../src/org/cyanogenmod/cmparts/search
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -d "$OUT" \
+    "$SRC/SearchIndexLatency.java" \
+    "$SRC/SearchIndexSnapshot.java" \
+    "$DIR/src/org/cyanogenmod/cmparts/search/SearchIndexHarness.java"
+
+java -cp "$OUT" org.cyanogenmod.cmparts.search.SearchIndexHarness "$@"
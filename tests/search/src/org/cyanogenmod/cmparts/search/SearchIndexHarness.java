@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2017 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmparts.search;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs indexing passes of the Settings app (the XML, raw and non-indexable queries, in
+ * that order) through {@link SearchIndexSnapshot} on a plain JVM, with a stub parts list
+ * and stub providers which sleep for their latency. Prints the p50/p99 of every query and
+ * every provider for each scenario:
+ *   cold     every pass starts with a new snapshot, like after a package update
+ *   warm     every pass runs on the same snapshot
+ *   locale   the locale changes before every pass
+ *   hung     a provider never answers, so it times out and is asked again by the next pass
+ *
+ * Usage: SearchIndexHarness [passes] [threads] [seed]
+ *
+ * The exit status is non zero if the providers aren't queried as expected, or the rows
+ * don't match the stub parts.
+ */
+public class SearchIndexHarness {
+
+    private static final String[] QUERIES = {
+            "queryXmlResources", "queryRawData", "queryNonIndexableKeys"
+    };
+
+    /**
+     * A part of the stub parts list
+     */
+    private static class StubPart {
+        final String mKey;
+        final boolean mHasXml;
+        // The provider, if the part has one
+        final StubProvider mProvider;
+
+        StubPart(String key, boolean hasXml, StubProvider provider) {
+            mKey = key;
+            mHasXml = hasXml;
+            mProvider = provider;
+        }
+    }
+
+    /**
+     * A provider which takes its latency, plus some jitter, to answer
+     */
+    private static class StubProvider {
+        final long mLatencyMs;
+        final int mRawRows;
+        final int mNonIndexableKeys;
+        final AtomicInteger mCalls = new AtomicInteger();
+        final Random mRandom;
+        volatile boolean mHung;
+
+        StubProvider(long latencyMs, int rawRows, int nonIndexableKeys, long seed) {
+            mLatencyMs = latencyMs;
+            mRawRows = rawRows;
+            mNonIndexableKeys = nonIndexableKeys;
+            mRandom = new Random(seed);
+        }
+
+        void query() {
+            mCalls.incrementAndGet();
+            long latency;
+            synchronized (mRandom) {
+                // Mostly close to the latency, with a long tail
+                latency = mLatencyMs + (long) (mLatencyMs * mRandom.nextGaussian() / 10);
+                if (mRandom.nextInt(50) == 0) {
+                    latency *= 3;
+                }
+            }
+            try {
+                Thread.sleep(mHung ? Long.MAX_VALUE : Math.max(0, latency));
+            } catch (InterruptedException e) {
+                // Cancelled after the timeout
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class StubCatalog implements SearchIndexSnapshot.Catalog {
+        final Map<String, StubPart> mParts = new LinkedHashMap<>();
+        volatile Locale mLocale = Locale.US;
+        final AtomicInteger mFailures = new AtomicInteger();
+
+        void add(StubPart part) {
+            mParts.put(part.mKey, part);
+        }
+
+        @Override
+        public Locale getLocale() {
+            return mLocale;
+        }
+
+        @Override
+        public Collection<String> getPartKeys() {
+            return mParts.keySet();
+        }
+
+        @Override
+        public Object[] buildXmlRow(String key) {
+            return mParts.get(key).mHasXml ? new Object[] { key } : null;
+        }
+
+        @Override
+        public boolean hasProvider(String key) {
+            return mParts.get(key).mProvider != null;
+        }
+
+        @Override
+        public SearchIndexSnapshot.PartRows buildPart(String key) {
+            final StubPart stub = mParts.get(key);
+            final SearchIndexSnapshot.PartRows part = new SearchIndexSnapshot.PartRows();
+            part.mRawRows = Collections.emptyList();
+            part.mNonIndexableKeys = Collections.emptySet();
+            if (stub.mProvider == null) {
+                return part;
+            }
+
+            stub.mProvider.query();
+            part.mRawRows = new ArrayList<>();
+            for (int i = 0; i < stub.mProvider.mRawRows; i++) {
+                part.mRawRows.add(new Object[] { key, i });
+            }
+            final Set<String> nonIndexableKeys = new HashSet<>();
+            for (int i = 0; i < stub.mProvider.mNonIndexableKeys; i++) {
+                nonIndexableKeys.add(key + "_" + i);
+            }
+            part.mNonIndexableKeys = nonIndexableKeys;
+            return part;
+        }
+
+        @Override
+        public SearchIndexSnapshot.PartRows buildFallbackPart(String key) {
+            final SearchIndexSnapshot.PartRows part = new SearchIndexSnapshot.PartRows();
+            part.mRawRows = Collections.singletonList(new Object[] { key, "fallback" });
+            part.mNonIndexableKeys = Collections.emptySet();
+            return part;
+        }
+
+        @Override
+        public Object[] buildNonIndexableRow(String nonIndexableKey) {
+            return new Object[] { nonIndexableKey };
+        }
+
+        @Override
+        public void onProviderFailed(String key, Throwable error) {
+            mFailures.incrementAndGet();
+        }
+
+        int getProviderCalls() {
+            int calls = 0;
+            for (StubPart part : mParts.values()) {
+                if (part.mProvider != null) {
+                    calls += part.mProvider.mCalls.get();
+                }
+            }
+            return calls;
+        }
+
+        int getProviderCount() {
+            int count = 0;
+            for (StubPart part : mParts.values()) {
+                if (part.mProvider != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        int getXmlRowCount() {
+            int count = 0;
+            for (StubPart part : mParts.values()) {
+                if (part.mHasXml) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        int getRawRowCount() {
+            int count = 0;
+            for (StubPart part : mParts.values()) {
+                if (part.mProvider != null) {
+                    count += part.mProvider.mRawRows;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return a parts list shaped like the CMParts one: mostly static xml parts, a fast
+     * provider with hardware dependent keys, and a slow one which reads a database
+     */
+    private static StubCatalog createCatalog(long seed) {
+        final StubCatalog catalog = new StubCatalog();
+        final String[] xmlParts = {
+                "button_settings", "status_bar_settings", "notification_lights",
+                "battery_lights", "privacy_settings", "profiles_settings", "weather_settings",
+                "perf_profile_settings", "display_rotation", "expanded_desktop",
+                "gesture_settings", "power_menu", "lockscreen_settings", "style_settings"
+        };
+        for (String key : xmlParts) {
+            catalog.add(new StubPart(key, true, null));
+        }
+        catalog.add(new StubPart("livedisplay", true, new StubProvider(3, 1, 4, seed)));
+        catalog.add(new StubPart("contributors", false, new StubProvider(40, 100, 0, seed + 1)));
+        return catalog;
+    }
+
+    public static void main(String[] args) {
+        final int passes = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        final PrintWriter pw = new PrintWriter(System.out, true);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean ok = true;
+        ok &= runCold(pw, executor, passes, seed);
+        ok &= runWarm(pw, executor, passes, seed);
+        ok &= runLocale(pw, executor, passes, seed);
+        ok &= runHung(pw, executor, seed);
+        executor.shutdownNow();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean runCold(PrintWriter pw, ExecutorService executor, int passes,
+            long seed) {
+        final StubCatalog catalog = createCatalog(seed);
+        final SearchIndexLatency latency = new SearchIndexLatency(passes * 8);
+        boolean ok = true;
+        for (int i = 0; i < passes; i++) {
+            final SearchIndexSnapshot snapshot =
+                    new SearchIndexSnapshot(catalog, executor, latency);
+            ok &= runPass(catalog, snapshot, latency, pw);
+        }
+        return report(pw, "cold", passes, latency, catalog,
+                passes * catalog.getProviderCount()) && ok;
+    }
+
+    private static boolean runWarm(PrintWriter pw, ExecutorService executor, int passes,
+            long seed) {
+        final StubCatalog catalog = createCatalog(seed);
+        final SearchIndexLatency latency = new SearchIndexLatency(passes * 8);
+        final SearchIndexSnapshot snapshot = new SearchIndexSnapshot(catalog, executor, latency);
+        boolean ok = true;
+        for (int i = 0; i < passes; i++) {
+            ok &= runPass(catalog, snapshot, latency, pw);
+        }
+        return report(pw, "warm", passes, latency, catalog, catalog.getProviderCount()) && ok;
+    }
+
+    private static boolean runLocale(PrintWriter pw, ExecutorService executor, int passes,
+            long seed) {
+        final StubCatalog catalog = createCatalog(seed);
+        final SearchIndexLatency latency = new SearchIndexLatency(passes * 8);
+        final SearchIndexSnapshot snapshot = new SearchIndexSnapshot(catalog, executor, latency);
+        boolean ok = true;
+        for (int i = 0; i < passes; i++) {
+            catalog.mLocale = i % 2 == 0 ? Locale.US : Locale.FRANCE;
+            ok &= runPass(catalog, snapshot, latency, pw);
+        }
+        return report(pw, "locale", passes, latency, catalog,
+                passes * catalog.getProviderCount()) && ok;
+    }
+
+    private static boolean runHung(PrintWriter pw, ExecutorService executor, long seed) {
+        final StubCatalog catalog = createCatalog(seed);
+        final StubProvider hung = catalog.mParts.get("contributors").mProvider;
+        hung.mHung = true;
+        final SearchIndexLatency latency = new SearchIndexLatency(64);
+        final SearchIndexSnapshot snapshot = new SearchIndexSnapshot(catalog, executor, latency);
+
+        // The raw and the non-indexable queries both wait for the hung provider, since its
+        // rows are never kept. The other providers answered, so they are only asked once.
+        final int passes = 2;
+        boolean ok = true;
+        for (int i = 0; i < passes; i++) {
+            final List<Object[]> rawRows = query(snapshot, latency, 1);
+            boolean fallback = false;
+            for (Object[] row : rawRows) {
+                fallback |= "fallback".equals(row[row.length - 1]);
+            }
+            if (!fallback) {
+                pw.println("FAILED: the hung provider isn't indexed with its fallback row");
+                ok = false;
+            }
+            query(snapshot, latency, 2);
+        }
+        if (catalog.mFailures.get() != 2 * passes) {
+            pw.println("FAILED: " + catalog.mFailures.get() + " provider failures, expected "
+                    + 2 * passes);
+            ok = false;
+        }
+        return report(pw, "hung", passes, latency, catalog,
+                catalog.getProviderCount() - 1 + 2 * passes) && ok;
+    }
+
+    /**
+     * Run the queries of an indexing pass, and check the XML query didn't ask the providers
+     */
+    private static boolean runPass(StubCatalog catalog, SearchIndexSnapshot snapshot,
+            SearchIndexLatency latency, PrintWriter pw) {
+        boolean ok = true;
+        final int calls = catalog.getProviderCalls();
+        final List<Object[]> xmlRows = query(snapshot, latency, 0);
+        if (catalog.getProviderCalls() != calls) {
+            pw.println("FAILED: the XML query asked the providers");
+            ok = false;
+        }
+        if (xmlRows.size() != catalog.getXmlRowCount()) {
+            pw.println("FAILED: " + xmlRows.size() + " XML rows, expected "
+                    + catalog.getXmlRowCount());
+            ok = false;
+        }
+        final List<Object[]> rawRows = query(snapshot, latency, 1);
+        if (rawRows.size() != catalog.getRawRowCount()) {
+            pw.println("FAILED: " + rawRows.size() + " raw rows, expected "
+                    + catalog.getRawRowCount());
+            ok = false;
+        }
+        query(snapshot, latency, 2);
+        return ok;
+    }
+
+    private static List<Object[]> query(SearchIndexSnapshot snapshot,
+            SearchIndexLatency latency, int query) {
+        final long start = System.nanoTime();
+        final List<Object[]> rows;
+        switch (query) {
+            case 0:
+                rows = snapshot.getXmlRows();
+                break;
+            case 1:
+                rows = snapshot.getRawRows();
+                break;
+            default:
+                rows = snapshot.getNonIndexableRows();
+                break;
+        }
+        latency.record(QUERIES[query], System.nanoTime() - start);
+        return rows;
+    }
+
+    private static boolean report(PrintWriter pw, String scenario, int passes,
+            SearchIndexLatency latency, StubCatalog catalog, int expectedCalls) {
+        pw.println("== " + scenario + " (" + passes + " passes)");
+        latency.dumpPercentiles(pw);
+        final int calls = catalog.getProviderCalls();
+        final boolean ok = calls == expectedCalls;
+        pw.println("provider calls " + calls + ": "
+                + (ok ? "ok" : "FAILED, expected " + expectedCalls));
+        pw.println();
+        return ok;
+    }
+}